@@ -1,14 +1,18 @@
 package com.amadeus.jenkins.plugins.workflow.libs;
 
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Item;
+import hudson.model.ItemGroup;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.TopLevelItem;
@@ -17,9 +21,12 @@ import hudson.slaves.WorkspaceList;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
-import org.apache.commons.io.FilenameUtils;
+import jenkins.util.SystemProperties;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -31,38 +38,54 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.client.methods.ZeroCopyConsumer;
+import org.apache.http.util.EntityUtils;
 import org.jenkinsci.Symbol;
+import org.jenkinsci.plugins.workflow.libs.FolderLibraries;
+import org.jenkinsci.plugins.workflow.libs.GlobalLibraries;
+import org.jenkinsci.plugins.workflow.libs.LibraryConfiguration;
 import org.jenkinsci.plugins.workflow.libs.LibraryRetriever;
 import org.jenkinsci.plugins.workflow.libs.LibraryRetrieverDescriptor;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Enumeration;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import static com.cloudbees.plugins.credentials.CredentialsProvider.USE_ITEM;
 import static com.cloudbees.plugins.credentials.CredentialsProvider.findCredentialById;
@@ -81,12 +104,27 @@ public class HttpRetriever extends LibraryRetriever {
 
   private static final String HTTPS_PROTOCOL = "https";
 
+  /**
+   * Maximum size, in bytes, of a downloaded archive, or of all the files of a library published as files together,
+   * 0 for no limit. Checked against the {@code Content-Length} of the responses before anything is written, then while
+   * the bodies are streamed to disk.
+   */
+  private static final long MAX_DOWNLOAD_SIZE = SystemProperties.getLong(
+          HttpRetriever.class.getName() + ".maxDownloadSize", 100L * 1024 * 1024);
+
+  /**
+   * Whether the builds only use the archives already in the cache, e.g. imported with {@link LibraryBundle}, without
+   * ever contacting the servers. Meant for controllers without access to the repositories.
+   */
+  static final String OFFLINE_PROPERTY = HttpRetriever.class.getName() + ".offline";
+
   /**
    * The template of the URL where to retrieve a zip of the library
    * <p>
    * Replaces the pattern ${library.NAME.version} in the URL (if found in the
    * shared library URL) either by the default version specified in the admin
    * configuration page or by the user in the Jenkinsfile @Library call.
+   * See {@link UrlTemplate} for the other supported placeholders.
    */
   private final String httpURL;
 
@@ -104,6 +142,59 @@ public class HttpRetriever extends LibraryRetriever {
    */
   private final boolean preemptiveAuth;
 
+  /**
+   * Header in which the password of the credentials is sent as a token with every request, instead of answering the
+   * authentication challenges of the server: {@code Authorization} for a bearer token, or the header of an API token,
+   * e.g. {@code X-JFrog-Art-Api} or {@code PRIVATE-TOKEN}. Basic authentication is used if null.
+   */
+  private String tokenHeader;
+
+  /**
+   * Maximum age, in seconds, of a cached archive that can be used without waiting for the server. Such an archive
+   * is revalidated in the background, and the last downloaded copy is used if the server cannot be reached.
+   * Meant for branch-style versions, whose content changes. Disabled if null.
+   */
+  private Integer maxStale;
+
+  /**
+   * Comma-separated patterns of the files of the archive to extract, the library-relevant paths if null
+   */
+  private String includes;
+
+  /**
+   * Comma-separated patterns of the files of the archive not to extract, even if included
+   */
+  private String excludes;
+
+  /**
+   * Template of the URL of the list of the files of the library with their SHA-256, in the {@code sha256sum} format.
+   * The files are published next to the list. If set, only the files missing from the store are downloaded, instead of
+   * the whole archive.
+   */
+  private String filesURL;
+
+  /**
+   * Template of the URL of the metadata listing the published versions of the library, a Maven
+   * {@code maven-metadata.xml} or a JSON index, against which dynamic versions such as {@code 1.+} or {@code latest}
+   * are resolved. Versions are used literally if null.
+   */
+  private String versionsURL;
+
+  /**
+   * Compiled form of {@link #httpURL}, rebuilt on deserialization
+   */
+  private transient UrlTemplate urlTemplate;
+
+  /**
+   * Compiled form of {@link #filesURL}, rebuilt on deserialization
+   */
+  private transient UrlTemplate filesTemplate;
+
+  /**
+   * Compiled form of {@link #versionsURL}, rebuilt on deserialization
+   */
+  private transient UrlTemplate versionsTemplate;
+
   /**
    * Constructor
    *
@@ -116,6 +207,14 @@ public class HttpRetriever extends LibraryRetriever {
     this.httpURL = httpURL;
     this.credentialsId = credentialsId;
     this.preemptiveAuth = preemptiveAuth;
+    this.urlTemplate = compileURL(httpURL);
+  }
+
+  protected Object readResolve() {
+    urlTemplate = compileURL(httpURL);
+    filesTemplate = compileURL(filesURL);
+    versionsTemplate = compileURL(versionsURL);
+    return this;
   }
 
   Jenkins getJenkins() {
@@ -150,6 +249,93 @@ public class HttpRetriever extends LibraryRetriever {
     return credentialsId;
   }
 
+  /**
+   * Accessor for the maximum age of a cached archive that can be used without waiting for the server
+   *
+   * @return The maximum age in seconds, 0 if the server is always checked first
+   */
+  public int getMaxStale() {
+    return maxStale == null ? 0 : maxStale;
+  }
+
+  @DataBoundSetter
+  public void setMaxStale(int maxStale) {
+    this.maxStale = maxStale > 0 ? maxStale : null;
+  }
+
+  /**
+   * Accessor for the files of the archive to extract
+   *
+   * @return Comma-separated Ant-style patterns, relative to the root of the library
+   */
+  public String getIncludes() {
+    return includes == null ? LibraryArchive.Filter.DEFAULT_INCLUDES : includes;
+  }
+
+  @DataBoundSetter
+  public void setIncludes(String includes) {
+    includes = Util.fixEmptyAndTrim(includes);
+    this.includes = LibraryArchive.Filter.DEFAULT_INCLUDES.equals(includes) ? null : includes;
+  }
+
+  /**
+   * Accessor for the files of the archive not to extract
+   *
+   * @return Comma-separated Ant-style patterns, relative to the root of the library, or null
+   */
+  public String getExcludes() {
+    return excludes;
+  }
+
+  @DataBoundSetter
+  public void setExcludes(String excludes) {
+    this.excludes = Util.fixEmptyAndTrim(excludes);
+  }
+
+  /**
+   * Accessor for the URL template of the list of the files of the library
+   *
+   * @return The URL template, or null if the library is always downloaded as a whole archive
+   */
+  public String getFilesURL() {
+    return filesURL;
+  }
+
+  @DataBoundSetter
+  public void setFilesURL(String filesURL) {
+    this.filesURL = Util.fixEmptyAndTrim(filesURL);
+    this.filesTemplate = compileURL(this.filesURL);
+  }
+
+  /**
+   * Accessor for the header in which the password of the credentials is sent as a token
+   *
+   * @return The name of the header, or null if Basic authentication is used
+   */
+  public String getTokenHeader() {
+    return tokenHeader;
+  }
+
+  @DataBoundSetter
+  public void setTokenHeader(String tokenHeader) {
+    this.tokenHeader = Util.fixEmptyAndTrim(tokenHeader);
+  }
+
+  /**
+   * Accessor for the URL template of the metadata listing the published versions of the library
+   *
+   * @return The URL template, or null if versions are used literally
+   */
+  public String getVersionsURL() {
+    return versionsURL;
+  }
+
+  @DataBoundSetter
+  public void setVersionsURL(String versionsURL) {
+    this.versionsURL = Util.fixEmptyAndTrim(versionsURL);
+    this.versionsTemplate = compileURL(this.versionsURL);
+  }
+
 
   /**
    * Retrieves the shared library code. Prefer this version of the method.
@@ -195,53 +381,72 @@ public class HttpRetriever extends LibraryRetriever {
     if (httpUrl.isEmpty()) {
       throw new Exception("The URL of the shared library is empty.");
     }
-    httpUrl = convertURLVersion(httpUrl, name, version);
-    doRetrieve(httpUrl, name, version, target, listener, run);
+    doRetrieve(name, version, target, listener, run);
   }
 
-  private void doRetrieve(String sourceURL, String name, String version, FilePath target,
+  private void doRetrieve(String name, String requestedVersion, FilePath target,
                           @NonNull TaskListener listener, Run<?, ?> run)
           throws InterruptedException, IOException, URISyntaxException {
 
+    // The archive being prefetched for the build, if any, is used as is rather than revalidated again
+    long waited = System.currentTimeMillis();
+    long prefetched = awaitPrefetch(name, requestedVersion, run) ? waited : Long.MAX_VALUE;
     UsernamePasswordCredentials passwordCredentials = initPasswordCredentials(run);
+    String version = resolveVersion(name, requestedVersion, passwordCredentials);
+    if (!version.equals(requestedVersion)) {
+      listener.getLogger().println("Resolving version " + requestedVersion + " of library " + name + " to "
+              + version + "...");
+    }
+    String sourceURL = convertURLVersion(name, version);
+    LibraryArchive.Filter filter = LibraryArchive.Filter.of(includes, excludes);
 
-    String zipFileName = FilenameUtils.getName(new URL(sourceURL).getPath());
-    FilePath dir = getDownloadFolder(name, run);
-    Computer computer = getSlave();
-
-    try (WorkspaceList.Lease lease = getWorkspace(dir, computer)) {
-
-      FilePath filePath = download(sourceURL, passwordCredentials, zipFileName, lease);
-      unzip(lease, filePath);
+    if (target.isRemote()) {
+      try (LibraryCache.Handle archive =
+                   fetchForBuild(sourceURL, name, version, passwordCredentials, prefetched, listener);
+           WorkspaceList.Lease lease = getWorkspace(getDownloadFolder(name, run), getSlave())) {
+        // Extracted without any wrapping directory
+        LibraryArchive.extract(archive.getArchive(), new File(lease.path.getRemote()), filter);
+        lease.path.copyRecursiveTo(target);
+      }
+    } else {
+      Path path = new File(target.getRemote()).toPath();
+      String filesURL = filesTemplate == null ? null : filesTemplate.expand(name, version);
+      String source = keyOf(sourceURL + '\n' + Util.fixNull(filesURL) + '\n' + filter, passwordCredentials);
+      LibraryStore store = getCache().getStore();
+      if (store.isMaterialized(path, source)) {
+        // e.g. the build resumed after a restart
+        listener.getLogger().println("Library " + name + "@" + version + " already retrieved in " + target);
+      } else {
+        LibraryStore.Manifest manifest = null;
+        if (filesURL != null && !isOffline()) {
+          manifest = fetchFiles(filesURL, name, version, passwordCredentials, filter, listener);
+        }
+        if (manifest == null) {
+          // Extracted once in the store
+          try (LibraryCache.Handle archive =
+                       fetchForBuild(sourceURL, name, version, passwordCredentials, prefetched, listener)) {
+            manifest = store.add(archive, filter);
+          }
+        }
+        // Linked in the build folder
+        manifest.materialize(path, source);
+      }
+    }
 
-      // Read version in version.txt if existing
-      String versionMessage = "";
-      String resolvedVersion = readVersion(lease.path);
+    // Read version in version.txt if existing
+    String versionMessage = "";
+    String resolvedVersion = readVersion(target);
 
-      if (resolvedVersion != null) {
-        resolvedVersion = resolvedVersion.trim();
+    if (resolvedVersion != null) {
+      resolvedVersion = resolvedVersion.trim();
 
-        // Just in case the version.txt would contain some new lines...
-        if (!resolvedVersion.equals(version)) {
-          versionMessage = "Resolving version " + resolvedVersion + " of library " + name + "...\n";
-        }
+      // Just in case the version.txt would contain some new lines...
+      if (!resolvedVersion.equals(version)) {
+        versionMessage = "Resolving version " + resolvedVersion + " of library " + name + "...\n";
       }
-      versionMessage += "From HTTP URL: " + sourceURL;
-      listener.getLogger().println(versionMessage);
-
-      // check to see if single directory is present, possibly encompassing the whole shared library that is configured
-      if (lease.path.list().size() == 1 && lease.path.list().get(0).isDirectory()) {
-          // perform a final check to make sure the upper level directory isn't just a single dir of a shared library,
-          // (e.g.`src`, `vars`, or `resources`) before moving the child contents into the proper FS location
-          String sharedLibUpperDir = lease.path.list().get(0).getName();
-          if (!sharedLibUpperDir.equals("src") && !sharedLibUpperDir.equals("vars") && !sharedLibUpperDir.equals("resources")) {
-              // move child contents of the encompassing directory
-              lease.path.list().get(0).moveAllChildrenTo(lease.path);
-          }
-      }
-      // Copying it in build folder
-      lease.path.copyRecursiveTo(target);
     }
+    versionMessage += "From HTTP URL: " + sourceURL;
+    listener.getLogger().println(versionMessage);
   }
 
   UsernamePasswordCredentials initPasswordCredentials(Run<?, ?> run) {
@@ -269,8 +474,12 @@ public class HttpRetriever extends LibraryRetriever {
   }
 
   UsernamePasswordCredentials findCredentials(String credentialsId) {
+    return findCredentials(credentialsId, getJenkins());
+  }
+
+  UsernamePasswordCredentials findCredentials(String credentialsId, ItemGroup<?> context) {
     List<StandardUsernameCredentials> standardUsernameCredentials = lookupCredentials(
-            StandardUsernameCredentials.class, getJenkins(), ACL.SYSTEM, Collections.emptyList());
+            StandardUsernameCredentials.class, context, ACL.SYSTEM, Collections.emptyList());
     for (StandardUsernameCredentials standardUsernameCredential : standardUsernameCredentials) {
       if (standardUsernameCredential instanceof UsernamePasswordCredentials) {
         UsernamePasswordCredentials passwordCredentials = (UsernamePasswordCredentials) standardUsernameCredential;
@@ -282,53 +491,487 @@ public class HttpRetriever extends LibraryRetriever {
     return null;
   }
 
-  private void unzip(WorkspaceList.Lease lease, FilePath filePath) throws IOException, InterruptedException {
-    try (ZipFile zipFile = new ZipFile(filePath.getRemote())) {
-      Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-      while (zipEntries.hasMoreElements()) {
-          String fileName = zipEntries.nextElement().getName();
-          if(fileName != null && fileName.contains("..")){
-            throw new IOException("Unsupported ZIP format that contains relative paths to parent that could cause a security breach");
-          }
+  /**
+   * Downloads a version of the library in the cache, unless the cached copy is still valid.
+   * Used to warm up the cache outside of builds. The archive is cached for the credentials found in the context,
+   * and thus only used by the builds for which the same credentials are resolved. Does nothing if the controller is
+   * offline.
+   *
+   * @param name    Name of the library
+   * @param version Version of the library
+   * @param context Where the library is configured, to look up the credentials
+   * @param force   Whether to download the archive even if the cached copy looks valid
+   * @throws IOException if the file cannot be downloaded
+   * @throws URISyntaxException if the resolved URL is invalid
+   * @throws InterruptedException if interrupted while downloading
+   */
+  void prefetch(@NonNull String name, @NonNull String version, @NonNull ItemGroup<?> context, boolean force)
+          throws IOException, URISyntaxException, InterruptedException {
+    String sourceURL = convertURLVersion(name, version);
+    if (sourceURL == null || sourceURL.isEmpty() || isOffline()) {
+      return;
+    }
+    UsernamePasswordCredentials passwordCredentials = findCredentials(credentialsId, context);
+    String resolved = resolveVersion(name, version, passwordCredentials);
+    fetch(convertURLVersion(name, resolved), name, resolved, passwordCredentials, force).close();
+  }
+
+  /**
+   * Resolves a dynamic version, e.g. {@code 1.+} or {@code latest}, against the metadata of the repository.
+   * The metadata is cached, and when it is older than its TTL, it is still used right away while being revalidated
+   * in the background, so that only the first resolution waits for the server. If the controller is offline and the
+   * metadata is not cached, e.g. after a restart, the version is resolved against the versions of the library whose
+   * archive is cached for the same credentials, e.g. imported from a bundle.
+   *
+   * @param name    Name of the library
+   * @param version Version of the library, as requested
+   * @return The highest published version matching a dynamic version, or the version itself
+   * @throws AbortException if no published version matches
+   * @throws IOException if the metadata cannot be downloaded
+   * @throws InterruptedException if interrupted while waiting for the other downloads from the host
+   */
+  String resolveVersion(@NonNull String name, @NonNull String version,
+                        UsernamePasswordCredentials passwordCredentials) throws IOException, InterruptedException {
+    if (versionsTemplate == null || !LibraryVersions.isDynamic(version)) {
+      return version;
+    }
+    String metadataURL = versionsTemplate.expand(name, version);
+    LibraryCache cache = getCache();
+    String key = keyOf(metadataURL, passwordCredentials);
+    LibraryVersions versions = cache.getVersions(key);
+    if (versions == null && isOffline()) {
+      versions = LibraryVersions.of(getCachedVersions(name, passwordCredentials));
+      String resolved = versions.resolve(version);
+      if (resolved == null) {
+        throw new AbortException("Cannot resolve version " + version + " of library " + name
+                + " while offline, as no cached version matches: import one with the " + LibraryBundle.CLI_COMMAND
+                + " CLI command, or see the " + OFFLINE_PROPERTY + " system property");
+      }
+      return resolved;
+    } else if (versions == null) {
+      versions = loadVersions(metadataURL, key, passwordCredentials, null);
+    } else if (!versions.isFresh(currentTimeMillis()) && !isOffline()) {
+      LibraryVersions stale = versions;
+      refreshInBackground(key, metadataURL, () -> loadVersions(metadataURL, key, passwordCredentials, stale));
+    }
+    String resolved = versions.resolve(version);
+    if (resolved == null) {
+      throw new AbortException("No published version of library " + name + " matches " + version
+              + " in " + metadataURL);
+    }
+    return resolved;
+  }
+
+  /**
+   * @return The versions of the library whose archive is cached under the URL resolved for them and the credentials
+   */
+  private List<String> getCachedVersions(String name, UsernamePasswordCredentials passwordCredentials) {
+    List<String> versions = new ArrayList<>();
+    for (LibraryCache.Entry entry : getCache().getEntries()) {
+      String version = entry.getVersion();
+      if (name.equals(entry.getLibrary()) && version != null) {
+        String url = convertURLVersion(name, version);
+        if (url != null && entry.getKey().equals(keyOf(url, passwordCredentials))) {
+          versions.add(version);
+        }
+      }
+    }
+    return versions;
+  }
+
+  /**
+   * Downloads the metadata listing the versions of a library, or revalidates the cached one with a conditional request,
+   * in turn with the other downloads from the host
+   */
+  private LibraryVersions loadVersions(String metadataURL, String key, UsernamePasswordCredentials passwordCredentials,
+                                       LibraryVersions cached) throws IOException, InterruptedException {
+    URL url = new URL(metadataURL);
+    HttpGet get;
+    try {
+      get = new HttpGet(url.toURI());
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+    if (cached != null) {
+      if (cached.getETag() != null) {
+        get.setHeader(HttpHeaders.IF_NONE_MATCH, cached.getETag());
+      }
+      if (cached.getLastModified() != null) {
+        get.setHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.getLastModified());
+      }
+    }
+    LibraryVersions versions;
+    HttpClientContext context = getHttpClientContext(passwordCredentials, url);
+    try (LibraryBulkhead.Permit ignored = LibraryBulkhead.of(url).acquire();
+         CloseableHttpResponse response = getHttpClient().execute(get, context)) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+        versions = cached.revalidated();
+      } else if (statusCode == HttpStatus.SC_OK) {
+        versions = LibraryVersions.parse(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8),
+                getHeader(response, HttpHeaders.ETAG), getHeader(response, HttpHeaders.LAST_MODIFIED));
+      } else {
+        throw new HttpStatusException(metadataURL, statusCode);
+      }
+    }
+    getCache().putVersions(key, versions);
+    return versions;
+  }
+
+  LibraryCache getCache() {
+    return LibraryCache.get();
+  }
+
+  CloseableHttpClient getHttpClient() {
+    return LibraryHttpClient.get();
+  }
+
+  CloseableHttpAsyncClient getAsyncHttpClient() {
+    return LibraryHttpClient.getAsync();
+  }
+
+  /**
+   * @return Whether a prefetch of the library for the build was waited for and succeeded
+   */
+  boolean awaitPrefetch(String name, String version, Run<?, ?> run) throws InterruptedException {
+    return LibraryPrefetcher.get().await(this, name, version, run.getParent().getParent());
+  }
+
+  void refreshInBackground(String key, String sourceURL, Callable<?> refresh) {
+    if (!isOffline()) {
+      LibraryPrefetcher.get().submit(key, sourceURL, sourceURL, refresh);
+    }
+  }
+
+  /**
+   * Gets a library published as separate files, only downloading the files that are not in the store yet.
+   *
+   * @param sumsURL URL of the list of the files of the library, with their SHA-256
+   * @return The manifest of the library, or null if it must be retrieved as a whole archive instead
+   */
+  private LibraryStore.Manifest fetchFiles(String sumsURL, String name, String version,
+                                           UsernamePasswordCredentials passwordCredentials,
+                                           LibraryArchive.Filter filter, TaskListener listener)
+          throws InterruptedException {
+    try (LibraryCache.Handle sums = fetch(sumsURL, name, version, passwordCredentials, false)) {
+      getCache().recordAccess(sums.getEntry().getKey());
+      URL base = new URL(sumsURL);
+      return getCache().getStore().add(sums, filter, files -> {
+        listener.getLogger().println("Downloading " + files.size() + " changed files listed in " + sumsURL);
+        downloadFiles(base, passwordCredentials, files);
+      });
+    } catch (IOException | URISyntaxException e) {
+      listener.getLogger().println("Cannot get the files listed in " + sumsURL + " (" + e.getMessage()
+              + "), downloading the whole archive instead.");
+      return null;
+    }
+  }
+
+  /**
+   * Gets the archive to use for a build. If {@link #maxStale} is set, a recent enough cached copy is used right
+   * away and revalidated in the background, and any cached copy is used if the server cannot be reached. If the
+   * controller is offline, only the cached copy is used.
+   *
+   * @param prefetched When the build started waiting for the archive to be prefetched, {@link Long#MAX_VALUE} if it
+   *                   did not: a copy cached since then is used as is
+   */
+  private LibraryCache.Handle fetchForBuild(String sourceURL, String name, String version,
+                                           UsernamePasswordCredentials passwordCredentials, long prefetched,
+                                           TaskListener listener)
+          throws IOException, URISyntaxException, InterruptedException {
+    LibraryCache cache = getCache();
+    String key = keyOf(sourceURL, passwordCredentials);
+    cache.recordAccess(key);
+    if (isOffline()) {
+      LibraryCache.Handle cached = cache.open(key);
+      if (cached == null) {
+        throw new AbortException(sourceURL + " is not in the cache, and the controller is offline: import it with the "
+                + LibraryBundle.CLI_COMMAND + " CLI command, or see the " + OFFLINE_PROPERTY + " system property");
       }
+      listener.getLogger().println("Using the copy of " + sourceURL + " cached on "
+              + new Date(cached.getEntry().getFetched()) + ", the controller being offline");
+      return cached;
+    }
+    if (prefetched != Long.MAX_VALUE) {
+      LibraryCache.Handle cached = cache.open(key);
+      if (cached != null && cached.getEntry().getFetched() >= prefetched) {
+        listener.getLogger().println("Using the copy of " + sourceURL + " prefetched for this build");
+        return cached;
+      } else if (cached != null) {
+        cached.close();
+      }
+    }
+    if (getMaxStale() <= 0) {
+      return fetch(sourceURL, name, version, passwordCredentials, false);
+    }
+    LibraryCache.Handle cached = cache.open(key);
+    if (cached != null) {
+      long age = currentTimeMillis() - cached.getEntry().getFetched();
+      if (age < TimeUnit.SECONDS.toMillis(getMaxStale())) {
+        listener.getLogger().println("Using the copy of " + sourceURL + " cached "
+                + TimeUnit.MILLISECONDS.toSeconds(age) + "s ago, revalidating it in the background");
+        refreshInBackground(key, sourceURL, () -> {
+          fetch(sourceURL, name, version, passwordCredentials, false).close();
+          return null;
+        });
+        return cached;
+      }
+      cached.close();
+    }
+    try {
+      return fetch(sourceURL, name, version, passwordCredentials, false);
+    } catch (IOException e) {
+      if (e instanceof HttpStatusException && !((HttpStatusException) e).isServerError()) {
+        throw e;
+      }
+      LibraryCache.Handle stale = cache.open(key);
+      if (stale == null) {
+        throw e;
+      }
+      listener.getLogger().println("WARNING: Cannot refresh " + sourceURL + " (" + e.getMessage()
+              + "), using the copy cached on " + new Date(stale.getEntry().getFetched()) + " instead.");
+      return stale;
     }
-    filePath.unzip(lease.path);
-    // Delete the archive
-    filePath.delete();
   }
 
-  private FilePath download(String sourceURL, UsernamePasswordCredentials passwordCredentials,
-                            String zipFileName, WorkspaceList.Lease lease)
-          throws IOException, URISyntaxException {
+  /**
+   * Makes sure the archive at the given URL is in the cache. A cached archive is revalidated with a conditional
+   * request, and only downloaded again if the server reports it changed. A recent 404 or 401 for the same URL and
+   * credentials is reported again without asking the server.
+   *
+   * @param force Whether to download the archive even if the cached copy looks valid, e.g. because it was overwritten.
+   *              The archive is then downloaded before locking the entry, so that the builds keep using the cached copy
+   *              until it is replaced.
+   * @return The cached archive, that cannot be replaced until closed
+   */
+  private LibraryCache.Handle fetch(String sourceURL, String name, String version,
+                                    UsernamePasswordCredentials passwordCredentials, boolean force)
+          throws IOException, URISyntaxException, InterruptedException {
     URL url = new URL(sourceURL);
-    HttpGet get = new HttpGet(url.toURI());
-    try (CloseableHttpClient client = HttpClients.createDefault()) {
-      HttpClientContext context = getHttpClientContext(passwordCredentials, url);
-      try (CloseableHttpResponse response = client.execute(get, context)) {
-        int statusCode = response.getStatusLine().getStatusCode();
+    URI uri = url.toURI();
+    LibraryCache cache = getCache();
+    String key = keyOf(sourceURL, passwordCredentials);
+    Integer failure = cache.getFailure(key);
+    if (failure != null && !force) {
+      throw new HttpStatusException(sourceURL, failure, true);
+    }
+    try {
+      LibraryCache.Handle handle;
+      if (force) {
+        File file = cache.createTempFile();
+        try {
+          HttpResponse response = download(url, uri, passwordCredentials, null, file);
+          handle = cache.open(key, false, cached -> publish(key, url, name, version, null, file, response, cache));
+        } finally {
+          Files.deleteIfExists(file.toPath());
+        }
+      } else {
+        handle = cache.open(key, true, cached -> {
+          File file = cache.createTempFile();
+          try {
+            HttpResponse response = download(url, uri, passwordCredentials, cached, file);
+            return publish(key, url, name, version, cached, file, response, cache);
+          } finally {
+            Files.deleteIfExists(file.toPath());
+          }
+        });
+      }
+      cache.clearFailure(key);
+      return handle;
+    } catch (HttpStatusException e) {
+      cache.recordFailure(key, e.getStatusCode());
+      throw e;
+    }
+  }
+
+  /**
+   * @param url                 Resolved URL
+   * @param passwordCredentials Credentials actually used to access the URL, if any
+   * @return The key under which what is downloaded from the URL, or the failures to access it, are cached. It depends
+   * on the credentials actually resolved rather than on the configured ID, so that a build is never given what it
+   * could not download itself.
+   */
+  static String keyOf(@NonNull String url, @CheckForNull UsernamePasswordCredentials passwordCredentials) {
+    return LibraryCache.keyOf(url, passwordCredentials == null ? null : DigestUtils.sha256Hex(
+            passwordCredentials.getUsername() + '\n' + passwordCredentials.getPassword().getPlainText()));
+  }
+
+  /**
+   * Downloads an archive to a file, with a conditional request if a cached copy is given
+   */
+  private HttpResponse download(URL url, URI uri, UsernamePasswordCredentials passwordCredentials,
+                                LibraryCache.Entry cached, File file) throws IOException, InterruptedException {
+    HttpGet get = new HttpGet(uri);
+    if (cached != null) {
+      if (cached.getETag() != null) {
+        get.setHeader(HttpHeaders.IF_NONE_MATCH, cached.getETag());
+      }
+      if (cached.getLastModified() != null) {
+        get.setHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.getLastModified());
+      }
+    }
+    try (LibraryBulkhead.Permit ignored = LibraryBulkhead.of(url).acquire()) {
+      return await(execute(get, url, passwordCredentials, file, new AtomicLong()));
+    }
+  }
+
+  /**
+   * Updates the cache with the response to a download. Must be called from a {@link LibraryCache.Loader}.
+   *
+   * @param cached The cached copy the download was conditional on, if any
+   * @param file   The downloaded archive, moved into the cache if the download succeeded
+   */
+  private LibraryCache.Entry publish(String key, URL url, String name, String version, LibraryCache.Entry cached,
+                                     File file, HttpResponse response, LibraryCache cache) throws IOException {
+    int statusCode = response.getStatusLine().getStatusCode();
+    if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+      return cache.revalidated(cached);
+    }
+    if (statusCode != HttpStatus.SC_OK) {
+      throw new HttpStatusException(url.toString(), statusCode);
+    }
+    return cache.publish(key, url.toString(), name, version, file,
+            getHeader(response, HttpHeaders.ETAG), getHeader(response, HttpHeaders.LAST_MODIFIED));
+  }
+
+  /**
+   * Downloads files of a library published as separate files, all at the same time, as a single download from the
+   * host of the list, and of the maximum download size.
+   *
+   * @param base  URL of the list of files, against which the paths of the files are resolved
+   * @param files Where to download each file, by path relative to the root of the library
+   */
+  private void downloadFiles(URL base, UsernamePasswordCredentials passwordCredentials, Map<String, File> files)
+          throws IOException, InterruptedException {
+    Map<URL, Future<HttpResponse>> responses = new LinkedHashMap<>();
+    // Bytes received by all the downloads, so that the library stops downloading as soon as it is too large
+    AtomicLong downloaded = new AtomicLong();
+    try (LibraryBulkhead.Permit ignored = LibraryBulkhead.of(base).acquire()) {
+      for (Map.Entry<String, File> file : files.entrySet()) {
+        URL url = base.toURI().resolve(new URI(null, null, file.getKey(), null)).toURL();
+        responses.put(url, execute(new HttpGet(url.toURI()), url, passwordCredentials, file.getValue(), downloaded));
+      }
+      for (Map.Entry<URL, Future<HttpResponse>> response : responses.entrySet()) {
+        int statusCode = await(response.getValue()).getStatusLine().getStatusCode();
         if (statusCode != HttpStatus.SC_OK) {
-          throw new IOException("Failed to download " + sourceURL + ". Returned code: " + statusCode);
+          throw new HttpStatusException(response.getKey().toString(), statusCode);
         }
-        return writeResponseToFile(zipFileName, lease, response);
+      }
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    } finally {
+      // Stops the other downloads after a failure, no-op for the completed ones
+      for (Future<HttpResponse> response : responses.values()) {
+        response.cancel(true);
       }
     }
   }
 
-  private FilePath writeResponseToFile(String zipFileName, WorkspaceList.Lease lease, HttpResponse response) throws IOException {
-    HttpEntity entity = response.getEntity();
-    try (InputStream inputStream = entity.getContent()) {
-      String wholeFilenameWithTargetPath = lease.path.child(zipFileName).getRemote();
-      File file = new File(wholeFilenameWithTargetPath);
-      if (file.getParentFile().exists() || file.getParentFile().mkdirs()) {
-        Files.copy(inputStream, Paths.get(wholeFilenameWithTargetPath),
-                StandardCopyOption.REPLACE_EXISTING);
-        return new FilePath(file);
-      } else {
-        throw new IOException("Could not create the folders for " + wholeFilenameWithTargetPath);
+  /**
+   * Starts downloading a URL to a file with the non-blocking client
+   *
+   * @param downloaded Bytes received by the downloads sharing the maximum download size with this one
+   */
+  private Future<HttpResponse> execute(HttpGet get, URL url, UsernamePasswordCredentials passwordCredentials,
+                                       File file, AtomicLong downloaded) throws IOException {
+    HttpClientContext context = getHttpClientContext(passwordCredentials, url);
+    return getAsyncHttpClient().execute(HttpAsyncMethods.create(get),
+            new LimitedConsumer(url, file, getMaxDownloadSize(), downloaded), context, null);
+  }
+
+  long getMaxDownloadSize() {
+    return MAX_DOWNLOAD_SIZE;
+  }
+
+  boolean isOffline() {
+    return SystemProperties.getBoolean(OFFLINE_PROPERTY);
+  }
+
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * @param name    Name of the library
+   * @param version Version of the library, not dynamic
+   * @return The URL of the archive of this version of the library, null if there is no URL
+   */
+  @CheckForNull
+  String getArchiveURL(@NonNull String name, @NonNull String version) {
+    return convertURLVersion(name, version);
+  }
+
+  /**
+   * Streams a response to a file, and aborts the transfer as soon as it, and the transfers sharing its maximum size,
+   * exceed this size
+   */
+  private static final class LimitedConsumer extends ZeroCopyConsumer<HttpResponse> {
+
+    private final URL url;
+    private final File file;
+    private final long maxSize;
+    private final AtomicLong downloaded;
+    private long received;
+
+    LimitedConsumer(URL url, File file, long maxSize, AtomicLong downloaded) throws FileNotFoundException {
+      super(file);
+      this.url = url;
+      this.file = file;
+      this.maxSize = maxSize;
+      this.downloaded = downloaded;
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+      checkSize(downloaded.get() + entity.getContentLength());
+      super.onEntityEnclosed(entity, contentType);
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+      super.onContentReceived(decoder, ioControl);
+      long length = file.length();
+      checkSize(downloaded.addAndGet(length - received));
+      received = length;
+    }
+
+    @Override
+    protected HttpResponse process(HttpResponse response, File file, ContentType contentType) {
+      return response;
+    }
+
+    private void checkSize(long size) throws IOException {
+      if (maxSize > 0 && size > maxSize) {
+        throw new IOException("Downloading " + url + " exceeds the maximum download size of " + maxSize
+                + " bytes, see the " + HttpRetriever.class.getName() + ".maxDownloadSize system property");
       }
     }
   }
 
+  /**
+   * Waits for a transfer of the non-blocking client, and aborts it if the waiting thread is interrupted,
+   * e.g. because the build is aborted.
+   */
+  private static <T> T await(Future<T> future) throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      throw e;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private static String getHeader(HttpResponse response, String name) {
+    Header header = response.getFirstHeader(name);
+    return header == null ? null : header.getValue();
+  }
+
   private CredentialsProvider getCredentialsProvider(UsernamePasswordCredentials passwordCredentials) {
     if (passwordCredentials != null) {
       BasicCredentialsProvider provider = new BasicCredentialsProvider();
@@ -382,19 +1025,81 @@ public class HttpRetriever extends LibraryRetriever {
    * shared library URL) either by the default version specified in the admin
    * configuration page or by the user in the Jenkinsfile @Library call.
    *
+   * <p>
+   * From a configuration page, the default versions of the other libraries configured there are validated at the
+   * same time, see {@link LibraryValidator}, so that the validations of their own fields find them in the cache.
+   *
    * @param name    Name of the library
    * @param version Version of the library
    * @return Result of the validation
    */
   @Override
   public FormValidation validateVersion(@NonNull String name, @NonNull String version) {
-    String replacedVersionURL = convertURLVersion(httpURL, name, version);
+    StaplerRequest request = Stapler.getCurrentRequest();
+    if (request == null) {
+      return checkVersion(name, version);
+    }
+    LibraryConfiguration library = new LibraryConfiguration(name, this);
+    library.setDefaultVersion(version);
+    List<LibraryConfiguration> libraries = new ArrayList<>();
+    libraries.add(library);
+    for (LibraryConfiguration other : librariesOf(request.findAncestorObject(Item.class))) {
+      if (!other.getName().equals(name)) {
+        libraries.add(other);
+      }
+    }
+    try {
+      return LibraryValidator.validate(libraries).get(library);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return FormValidation.warning(e, "Cannot validate default version.");
+    }
+  }
+
+  /**
+   * @param context The item whose configuration page is displayed, null for the global configuration
+   * @return The libraries configured on the page
+   */
+  private static List<LibraryConfiguration> librariesOf(@CheckForNull Item context) {
+    if (context == null) {
+      return GlobalLibraries.get().getLibraries();
+    }
+    if (context instanceof AbstractFolder) {
+      FolderLibraries libraries = ((AbstractFolder<?>) context).getProperties().get(FolderLibraries.class);
+      if (libraries != null) {
+        return libraries.getLibraries();
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Validates a version, see {@link #validateVersion(String, String)}, on its own
+   */
+  FormValidation checkVersion(@NonNull String name, @NonNull String version) {
     try {
-      URL newURL = new URL(replacedVersionURL);
+      UsernamePasswordCredentials passwordCredentials = initPasswordCredentials();
+      String resolved;
+      try {
+        resolved = resolveVersion(name, version, passwordCredentials);
+      } catch (AbortException e) {
+        return FormValidation.warning(e.getMessage());
+      }
+      URL newURL = new URL(convertURLVersion(name, resolved));
+      String label = version.equals(resolved) ? version : version + " (" + resolved + ")";
 
-      switch (checkURL(newURL)) {
+      if (isOffline()) {
+        // Only the cache can tell, without asking the server
+        if (getCache().get(keyOf(newURL.toString(), passwordCredentials)) != null) {
+          return FormValidation.ok("Version " + label + " is in the cache, the controller being offline.");
+        }
+        return FormValidation.warning("Version " + label + " is not in the cache, and the controller is offline: "
+                + "import it with the " + LibraryBundle.CLI_COMMAND + " CLI command, or see the " + OFFLINE_PROPERTY
+                + " system property");
+      }
+      switch (checkURL(newURL, passwordCredentials)) {
         case HttpStatus.SC_OK:
-          return validateVersionIfCheckIsOk(newURL, version);
+          return validateVersionIfCheckIsOk(newURL, label);
         case HttpStatus.SC_UNAUTHORIZED:
           return FormValidation.warning("You are not authorized to access to this URL...");
         default:
@@ -402,6 +1107,9 @@ public class HttpRetriever extends LibraryRetriever {
       }
     } catch (IOException | URISyntaxException e) {
       return FormValidation.warning(e, "Cannot validate default version.");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return FormValidation.warning(e, "Cannot validate default version.");
     }
   }
 
@@ -432,48 +1140,74 @@ public class HttpRetriever extends LibraryRetriever {
 
   // ------------ UTIL ------------ //
 
-  private String convertURLVersion(String url, String name, String version) {
-    Pattern p = Pattern.compile("\\$\\{library." + name + ".version\\}");
-    Matcher match = p.matcher(url);
+  private static UrlTemplate compileURL(String url) {
+    return url == null ? null : UrlTemplate.compile(url);
+  }
 
-    return match.find() ? match.replaceAll(version) : url;
+  private String convertURLVersion(String name, String version) {
+    return urlTemplate == null ? null : urlTemplate.expand(name, version);
   }
 
-  private int checkURL(URL url) throws IOException, URISyntaxException {
-    UsernamePasswordCredentials passwordCredentials = initPasswordCredentials();
+  private int checkURL(URL url, UsernamePasswordCredentials passwordCredentials)
+          throws IOException, URISyntaxException, InterruptedException {
+    LibraryCache cache = getCache();
+    String key = keyOf(url.toString(), passwordCredentials);
+    Integer failure = cache.getFailure(key);
+    if (failure != null) {
+      return failure;
+    }
+    if (cache.isValidated(key)) {
+      return HttpStatus.SC_OK;
+    }
     HttpHead head = new HttpHead(url.toURI());
-    try (CloseableHttpClient client = HttpClients.createDefault()) {
-      HttpClientContext context = getHttpClientContext(passwordCredentials, url);
-      try (CloseableHttpResponse response = client.execute(head, context)) {
-        return response.getStatusLine().getStatusCode();
+    HttpClientContext context = getHttpClientContext(passwordCredentials, url);
+    try (LibraryBulkhead.Permit ignored = LibraryBulkhead.of(url).acquire();
+         CloseableHttpResponse response = getHttpClient().execute(head, context)) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      cache.recordFailure(key, statusCode);
+      if (statusCode == HttpStatus.SC_OK) {
+        cache.recordValidated(key);
       }
+      return statusCode;
     }
   }
 
+  /**
+   * @param url The URL of the request, to whose host only the token header is sent, if any
+   * @return The context in which to send the request
+   */
   private HttpClientContext getHttpClientContext(UsernamePasswordCredentials passwordCredentials, URL url) {
     HttpClientContext context = HttpClientContext.create();
     // Authenticate if credentials are given
-    if (passwordCredentials != null) {
-      CredentialsProvider credentialsProvider = getCredentialsProvider(passwordCredentials);
-      context.setCredentialsProvider(credentialsProvider);
+    if (passwordCredentials == null) {
+      return context;
+    }
+    if (tokenHeader != null) {
+      // Added by the client to the requests sent to the repository only, not to the hosts it redirects to
+      String token = passwordCredentials.getPassword().getPlainText();
+      LibraryHttpClient.setToken(context, url, tokenHeader,
+              HttpHeaders.AUTHORIZATION.equalsIgnoreCase(tokenHeader) ? "Bearer " + token : token);
+      return context;
     }
+    CredentialsProvider credentialsProvider = getCredentialsProvider(passwordCredentials);
+    context.setCredentialsProvider(credentialsProvider);
+    // Shared by all the requests with the same credentials: once a host challenged one of them, the next ones are
+    // authenticated right away
+    AuthCache authCache = LibraryHttpClient.getAuthCache(passwordCredentials.getUsername(),
+            passwordCredentials.getPassword().getPlainText());
     if (isPreemptiveAuth()) {
-      setPreemptiveAuth(context, url);
+      setPreemptiveAuth(authCache, url);
     }
+    context.setAuthCache(authCache);
     return context;
   }
 
-  private void setPreemptiveAuth(HttpClientContext context, URL url) {
-    // Create AuthCache instance
-    AuthCache authCache = new BasicAuthCache();
-    // Generate BASIC scheme object and add it to the local
-    // auth cache
-    BasicScheme basicAuth = new BasicScheme();
+  private void setPreemptiveAuth(AuthCache authCache, URL url) {
     HttpHost target = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
-    authCache.put(target, basicAuth);
-
-    // Add AuthCache to the execution context
-    context.setAuthCache(authCache);
+    // Keeps the scheme learned from a challenge, if any
+    if (authCache.get(target) == null) {
+      authCache.put(target, new BasicScheme());
+    }
   }
 
   // ---------- DESCRIPTOR ------------ //
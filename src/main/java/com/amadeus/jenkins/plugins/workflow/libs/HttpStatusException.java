@@ -0,0 +1,41 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server answers a library download with an unexpected status code
+ */
+@Restricted(NoExternalUse.class)
+class HttpStatusException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int statusCode;
+
+  HttpStatusException(String url, int statusCode) {
+    this(url, statusCode, false);
+  }
+
+  /**
+   * @param remembered Whether the status code comes from a previous request rather than from the server
+   */
+  HttpStatusException(String url, int statusCode, boolean remembered) {
+    super("Failed to download " + url + ". Returned code: " + statusCode
+            + (remembered ? " (remembered from a recent attempt)" : ""));
+    this.statusCode = statusCode;
+  }
+
+  int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * @return true if the server failed, as opposed to rejecting the request
+   */
+  boolean isServerError() {
+    return statusCode >= 500;
+  }
+}
@@ -0,0 +1,48 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.args4j.Argument;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Imports a bundle of library archives into the cache, see {@link LibraryBundle}:
+ * <pre>
+ * java -jar jenkins-cli.jar -s "$JENKINS_URL" import-http-libraries &lt; bundle.tar.gz
+ * java -jar jenkins-cli.jar -s "$JENKINS_URL" import-http-libraries /path/on/the/controller/bundle
+ * </pre>
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class ImportLibrariesCommand extends CLICommand {
+
+  @Argument(metaVar = "BUNDLE", usage = "Directory, zip or tarball of the bundle on the controller. "
+          + "Read from the standard input if not given.")
+  public String bundle;
+
+  @Override
+  public String getName() {
+    return LibraryBundle.CLI_COMMAND;
+  }
+
+  @Override
+  public String getShortDescription() {
+    return "Imports a bundle of archives of libraries retrieved through HTTP into the cache of the controller.";
+  }
+
+  @Override
+  protected int run() throws Exception {
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    List<String> report = bundle == null ? LibraryBundle.importBundle(stdin)
+            : LibraryBundle.importBundle(new File(bundle));
+    for (String line : report) {
+      stdout.println(line);
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,406 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import jenkins.util.SystemProperties;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts the zip of a library.
+ * <p>
+ * A library may be zipped with or without a single wrapping directory, e.g. {@code my-lib-1.2.3/src/...} or
+ * {@code src/...}. The layout is detected from the central directory of the zip before anything is written, and the
+ * wrapping directory, if any, is stripped from the entry names while they are extracted.
+ * <p>
+ * Only the entries accepted by a {@link Filter} are extracted, so that documentation, tests or build files shipped in
+ * the same zip are never written to the disk, nor copied into the builds.
+ * <p>
+ * The files of large archives, e.g. with thousands of small scripts, are written in parallel by a bounded fork-join
+ * pool shared by all the extractions, as their extraction is mostly bound by file system calls.
+ * <p>
+ * The resources used by an extraction are bounded by {@link Limits}, checked against the central directory before
+ * anything is written, then against the bytes actually inflated, as the sizes declared by a zip cannot be trusted.
+ */
+@Restricted(NoExternalUse.class)
+final class LibraryArchive {
+
+  /**
+   * Directories of a library, never considered as a wrapping directory
+   */
+  private static final Set<String> LIBRARY_DIRS = new HashSet<>(Arrays.asList("src", "vars", "resources"));
+
+  /**
+   * Maximum number of files written at the same time, all extractions included
+   */
+  private static final int PARALLELISM = Math.max(1, SystemProperties.getInteger(
+          LibraryArchive.class.getName() + ".parallelism", Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+  /**
+   * Minimum number of files of an archive for its files to be written in parallel
+   */
+  private static final int PARALLEL_THRESHOLD =
+          SystemProperties.getInteger(LibraryArchive.class.getName() + ".parallelThreshold", 64);
+
+  private static final ForkJoinPool POOL = new ForkJoinPool(PARALLELISM, pool -> {
+    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+    thread.setName("HTTP shared libraries extraction " + thread.getPoolIndex());
+    return thread;
+  }, null, false);
+
+  private LibraryArchive() {
+  }
+
+  /**
+   * Extracts a zip into a directory, replacing its previous content.
+   *
+   * @param archive The zip of the library
+   * @param target  Where to extract it
+   * @param filter  The entries to extract, named without the wrapping directory
+   * @throws IOException if the zip is invalid or contains relative paths to a parent directory
+   */
+  static void extract(@NonNull File archive, @NonNull File target, @NonNull Filter filter) throws IOException {
+    extract(archive, target, filter, Limits.DEFAULT);
+  }
+
+  /**
+   * @param limits The resources the extraction may use
+   * @throws IOException if the zip also exceeds one of the limits
+   * @see #extract(File, File, Filter)
+   */
+  static void extract(@NonNull File archive, @NonNull File target, @NonNull Filter filter, @NonNull Limits limits)
+          throws IOException {
+    try (ZipFile zipFile = new ZipFile(archive)) {
+      List<? extends ZipEntry> entries = Collections.list(zipFile.entries());
+      limits.checkEntries(entries.size());
+      for (ZipEntry entry : entries) {
+        if (entry.getName().contains("..")) {
+          throw new IOException("Unsupported ZIP format that contains relative paths to parent that could cause a security breach");
+        }
+        checkName(entry.getName());
+      }
+      String prefix = getWrappingDirectory(entries);
+      if (target.exists()) {
+        Util.deleteContentsRecursive(target);
+      }
+      Path root = target.toPath();
+      Set<Path> directories = new LinkedHashSet<>();
+      directories.add(root);
+      Map<ZipEntry, Path> files = new LinkedHashMap<>();
+      long size = 0;
+      for (ZipEntry entry : entries) {
+        String name = entry.getName().substring(prefix.length());
+        if (name.isEmpty() || !filter.accepts(name)) {
+          continue;
+        }
+        Path path = resolve(root, name);
+        if (entry.isDirectory()) {
+          directories.add(path);
+        } else {
+          directories.add(path.getParent());
+          files.put(entry, path);
+          limits.checkRatio(entry, entry.getSize());
+          size += Math.max(0, entry.getSize());
+          limits.checkSize(size);
+        }
+      }
+      // All the directories are created up front, so that files can then be written in any order
+      for (Path directory : directories) {
+        Files.createDirectories(directory);
+      }
+      AtomicLong written = new AtomicLong();
+      if (PARALLELISM > 1 && files.size() >= PARALLEL_THRESHOLD) {
+        writeInParallel(zipFile, files, limits, written);
+      } else {
+        for (Map.Entry<ZipEntry, Path> file : files.entrySet()) {
+          write(zipFile, file.getKey(), file.getValue(), limits, written);
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks that the name of a file of a library is relative, and stays in the directory of the library, whatever the
+   * operating system.
+   *
+   * @param name Name of a file, relative to the root of the library
+   * @throws IOException if the name is absolute, has a drive letter or a backslash, or refers to a parent directory
+   */
+  static void checkName(@NonNull String name) throws IOException {
+    boolean driveLetter = name.length() > 1 && name.charAt(1) == ':' && Character.isLetter(name.charAt(0));
+    if (name.startsWith("/") || name.indexOf('\\') >= 0 || driveLetter || name.indexOf('\0') >= 0) {
+      throw new IOException("Unsupported file name " + name + " that could be written outside of the library");
+    }
+    for (String segment : name.split("/")) {
+      if (segment.equals("..")) {
+        throw new IOException("Unsupported file name " + name + " that refers to a parent directory");
+      }
+    }
+  }
+
+  /**
+   * Resolves the name of a file of a library in the directory of the library, see {@link #checkName(String)}.
+   *
+   * @param root The directory of the library
+   * @param name Name of a file, relative to the root of the library
+   * @return The path of the file, in the directory
+   * @throws IOException if the file would be outside of the directory
+   */
+  @NonNull
+  static Path resolve(@NonNull Path root, @NonNull String name) throws IOException {
+    checkName(name);
+    Path normalized = root.normalize();
+    Path path = normalized.resolve(name).normalize();
+    if (!path.startsWith(normalized)) {
+      throw new IOException("Unsupported file name " + name + " that could be written outside of the library");
+    }
+    return path;
+  }
+
+  private static void writeInParallel(ZipFile zipFile, Map<ZipEntry, Path> files, Limits limits, AtomicLong written)
+          throws IOException {
+    try {
+      POOL.invoke(ForkJoinTask.adapt(() -> files.entrySet().parallelStream().forEach(file -> {
+        try {
+          write(zipFile, file.getKey(), file.getValue(), limits, written);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      })));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static void write(ZipFile zipFile, ZipEntry entry, Path path, Limits limits, AtomicLong written)
+          throws IOException {
+    try (InputStream in = new LimitedInputStream(zipFile.getInputStream(entry), entry, limits, written)) {
+      Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+    if (entry.getTime() != -1) {
+      path.toFile().setLastModified(entry.getTime());
+    }
+  }
+
+  /**
+   * @return The name, followed by a slash, of the directory wrapping all the entries, or an empty string if there is
+   * none or if it is one of the {@link #LIBRARY_DIRS}
+   */
+  static String getWrappingDirectory(List<? extends ZipEntry> entries) {
+    String root = null;
+    boolean directory = false;
+    for (ZipEntry entry : entries) {
+      String name = entry.getName();
+      int slash = name.indexOf('/');
+      String first = slash < 0 ? name : name.substring(0, slash);
+      if (root == null) {
+        root = first;
+      } else if (!root.equals(first)) {
+        return "";
+      }
+      directory |= slash >= 0;
+    }
+    if (root == null || !directory || LIBRARY_DIRS.contains(root)) {
+      return "";
+    }
+    return root + '/';
+  }
+
+  /**
+   * Bounds the resources an archive may use once extracted, so that a badly packaged library, e.g. one bundling
+   * {@code node_modules} or a compressed blob, cannot fill the disk of the controller. A limit of 0 disables it.
+   */
+  static final class Limits {
+
+    private static final String PREFIX = LibraryArchive.class.getName();
+
+    static final Limits DEFAULT = new Limits(
+            SystemProperties.getInteger(PREFIX + ".maxEntries", 65536),
+            SystemProperties.getLong(PREFIX + ".maxSize", 1024L * 1024 * 1024),
+            SystemProperties.getInteger(PREFIX + ".maxCompressionRatio", 100));
+
+    /**
+     * Uncompressed size, in bytes, up to which a file is not subject to the compression ratio, as small files of
+     * repeated content legitimately compress very well
+     */
+    private static final long RATIO_GRACE_SIZE = 1024 * 1024;
+
+    private final int maxEntries;
+    private final long maxSize;
+    private final int maxCompressionRatio;
+
+    /**
+     * @param maxEntries          Maximum number of entries of the zip, extracted or not
+     * @param maxSize             Maximum total size, in bytes, of the extracted files
+     * @param maxCompressionRatio Maximum ratio between the extracted and the compressed size of a file
+     */
+    Limits(int maxEntries, long maxSize, int maxCompressionRatio) {
+      this.maxEntries = maxEntries;
+      this.maxSize = maxSize;
+      this.maxCompressionRatio = maxCompressionRatio;
+    }
+
+    void checkEntries(int entries) throws IOException {
+      if (maxEntries > 0 && entries > maxEntries) {
+        throw new IOException("The archive has more than " + maxEntries + " entries, see the "
+                + PREFIX + ".maxEntries system property");
+      }
+    }
+
+    void checkSize(long size) throws IOException {
+      if (maxSize > 0 && size > maxSize) {
+        throw new IOException("The extracted files of the archive are larger than " + maxSize + " bytes, see the "
+                + PREFIX + ".maxSize system property");
+      }
+    }
+
+    /**
+     * @param size Uncompressed size of the entry, declared or inflated so far
+     */
+    void checkRatio(ZipEntry entry, long size) throws IOException {
+      long compressedSize = entry.getCompressedSize();
+      if (maxCompressionRatio > 0 && size > RATIO_GRACE_SIZE && compressedSize >= 0
+              && size > compressedSize * maxCompressionRatio) {
+        throw new IOException(entry.getName() + " is compressed more than " + maxCompressionRatio + " times, see the "
+                + PREFIX + ".maxCompressionRatio system property");
+      }
+    }
+  }
+
+  /**
+   * Counts the bytes inflated from an entry, and fails as soon as they exceed a limit or the size declared by the zip
+   */
+  private static final class LimitedInputStream extends FilterInputStream {
+
+    private final ZipEntry entry;
+    private final Limits limits;
+    private final AtomicLong written;
+    private long read;
+
+    LimitedInputStream(InputStream in, ZipEntry entry, Limits limits, AtomicLong written) {
+      super(in);
+      this.entry = entry;
+      this.limits = limits;
+      this.written = written;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count(n);
+      }
+      return n;
+    }
+
+    private void count(int n) throws IOException {
+      read += n;
+      if (entry.getSize() >= 0 && read > entry.getSize()) {
+        throw new IOException(entry.getName() + " is larger than declared in the archive");
+      }
+      limits.checkRatio(entry, read);
+      limits.checkSize(written.addAndGet(n));
+    }
+  }
+
+  /**
+   * Selects entries with comma-separated Ant-style patterns, e.g. {@code src/**, vars/**}
+   */
+  static final class Filter {
+
+    /**
+     * The library-relevant paths
+     */
+    static final String DEFAULT_INCLUDES = "src/**, vars/**, resources/**, version.txt";
+
+    static final Filter ALL = new Filter(Collections.singletonList("**"), Collections.emptyList());
+
+    private final List<String> includes;
+    private final List<String> excludes;
+
+    private Filter(List<String> includes, List<String> excludes) {
+      this.includes = includes;
+      this.excludes = excludes;
+    }
+
+    /**
+     * @param includes The patterns of the entries to extract, {@link #DEFAULT_INCLUDES} if null
+     * @param excludes The patterns of the entries not to extract, even if included
+     */
+    static Filter of(@CheckForNull String includes, @CheckForNull String excludes) {
+      return new Filter(split(includes == null ? DEFAULT_INCLUDES : includes), split(excludes));
+    }
+
+    private static List<String> split(String patterns) {
+      List<String> result = new ArrayList<>();
+      if (patterns != null) {
+        for (String pattern : patterns.split(",")) {
+          if (!pattern.trim().isEmpty()) {
+            result.add(pattern.trim());
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @param name Name of a file or directory, relative to the root of the library, with or without a trailing slash
+     */
+    boolean accepts(String name) {
+      String path = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+      return matches(includes, path) && !matches(excludes, path);
+    }
+
+    /**
+     * @return The patterns, identifying the filter
+     */
+    @Override
+    public String toString() {
+      return String.join(",", includes) + '\n' + String.join(",", excludes);
+    }
+
+    private static boolean matches(List<String> patterns, String path) {
+      for (String pattern : patterns) {
+        if (SelectorUtils.matchPath(pattern, path)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
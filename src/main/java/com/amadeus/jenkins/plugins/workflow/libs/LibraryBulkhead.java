@@ -0,0 +1,145 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Isolates the downloads from each host, so that a slow or unresponsive repository only delays the libraries it
+ * hosts.
+ * <p>
+ * Each host has its own limit of downloads in progress, with a bounded number of callers waiting for their turn during
+ * a bounded time, and its own bounded pool of threads for the background downloads. When a host degrades, the builds
+ * needing its libraries fail fast, or fall back to a stale copy, instead of piling up, and the downloads from the
+ * other hosts go on unaffected.
+ */
+@Restricted(NoExternalUse.class)
+final class LibraryBulkhead {
+
+  private static final String PREFIX = LibraryBulkhead.class.getName();
+
+  /**
+   * Maximum number of downloads in progress from a single host, background ones included
+   */
+  private static final int MAX_CONCURRENT = Math.max(1, SystemProperties.getInteger(PREFIX + ".maxConcurrent", 8));
+
+  /**
+   * Maximum number of downloads waiting for their turn, and of background downloads queued, for a single host
+   */
+  private static final int MAX_QUEUED = Math.max(1, SystemProperties.getInteger(PREFIX + ".maxQueued", 32));
+
+  /**
+   * How long, in seconds, a download waits for its turn
+   */
+  private static final int MAX_WAIT = SystemProperties.getInteger(PREFIX + ".maxWait", 60);
+
+  /**
+   * Number of threads running the background downloads from a single host
+   */
+  private static final int BACKGROUND_THREADS =
+          Math.max(1, SystemProperties.getInteger(PREFIX + ".backgroundThreads", 2));
+
+  private static final ConcurrentMap<String, LibraryBulkhead> BULKHEADS = new ConcurrentHashMap<>();
+
+  private final String host;
+  private final Semaphore permits;
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final int maxQueued;
+  private final long maxWaitMillis;
+  private final ThreadPoolExecutor executor;
+
+  LibraryBulkhead(String host, int maxConcurrent, int maxQueued, long maxWaitMillis, int backgroundThreads) {
+    this.host = host;
+    this.permits = new Semaphore(maxConcurrent, true);
+    this.maxQueued = maxQueued;
+    this.maxWaitMillis = maxWaitMillis;
+    this.executor = new ThreadPoolExecutor(backgroundThreads, backgroundThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(maxQueued),
+            new NamingThreadFactory(new DaemonThreadFactory(), "HTTP shared libraries downloads from " + host));
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return The bulkhead of the host of the given URL
+   */
+  @NonNull
+  static LibraryBulkhead of(@NonNull URL url) {
+    return BULKHEADS.computeIfAbsent(hostOf(url), host -> new LibraryBulkhead(host, MAX_CONCURRENT, MAX_QUEUED,
+            TimeUnit.SECONDS.toMillis(MAX_WAIT), BACKGROUND_THREADS));
+  }
+
+  /**
+   * @return The host and port of the URL, e.g. {@code repo:443}
+   */
+  @NonNull
+  static String hostOf(@NonNull URL url) {
+    int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+    return url.getHost().toLowerCase(Locale.ROOT) + ':' + port;
+  }
+
+  /**
+   * Waits for the turn of a download from the host.
+   *
+   * @return The permit to download, to close once the download completed
+   * @throws IOException if too many downloads are already waiting, or if the turn did not come in time
+   */
+  @NonNull
+  Permit acquire() throws IOException, InterruptedException {
+    if (!permits.tryAcquire()) {
+      if (waiting.incrementAndGet() > maxQueued) {
+        waiting.decrementAndGet();
+        throw new IOException("Too many downloads waiting for " + host + ", see the " + PREFIX
+                + ".maxQueued system property");
+      }
+      try {
+        if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+          throw new IOException("Timed out after " + TimeUnit.MILLISECONDS.toSeconds(maxWaitMillis)
+                  + "s waiting for the other downloads from " + host + ", see the " + PREFIX
+                  + ".maxWait system property");
+        }
+      } finally {
+        waiting.decrementAndGet();
+      }
+    }
+    return permits::release;
+  }
+
+  /**
+   * @return The number of downloads waiting for their turn
+   */
+  int getWaiting() {
+    return waiting.get();
+  }
+
+  /**
+   * Runs a background download on the threads of the host.
+   *
+   * @throws RejectedExecutionException if too many background downloads are already queued for the host
+   */
+  void execute(@NonNull Runnable task) {
+    executor.execute(task);
+  }
+
+  /**
+   * Permit to download from a host, released when closed
+   */
+  interface Permit extends AutoCloseable {
+    @Override
+    void close();
+  }
+}
@@ -0,0 +1,221 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.ItemGroup;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Imports a bundle of library archives into the {@link LibraryCache}, so that a controller without access to the
+ * repositories, or starting with an empty cache, can run its builds from the first one.
+ * <p>
+ * A bundle is a directory, or a zip or a tarball of it, with the archives and a {@code libraries.json} manifest:
+ * <pre>
+ * {"libraries": [
+ *   {"name": "my-library", "version": "1.2.0", "file": "my-library-1.2.0.zip"},
+ *   {"name": "other-library", "version": "2.0", "file": "other-library-2.0.zip", "url": "https://repo/other.zip"}
+ * ]}
+ * </pre>
+ * Each archive is cached for the libraries of the same name configured globally or in folders, under the URL their
+ * retriever resolves for the version, and with the credentials found where they are configured, exactly as if a build
+ * had downloaded it. The optional {@code url} restricts the import to the libraries resolving this URL, and also caches
+ * the archive for the libraries declared in a Jenkinsfile with this URL and without credentials.
+ */
+@Restricted(NoExternalUse.class)
+final class LibraryBundle {
+
+  static final String CLI_COMMAND = "import-http-libraries";
+
+  static final String MANIFEST = "libraries.json";
+
+  private LibraryBundle() {
+  }
+
+  /**
+   * Imports a bundle for the libraries configured in Jenkins.
+   *
+   * @param bundle A directory, a zip or a tarball
+   * @return What was imported, for the caller
+   * @throws IOException if the bundle is invalid, or cannot be imported
+   * @throws InterruptedException if interrupted while extracting the bundle
+   */
+  @NonNull
+  static List<String> importBundle(@NonNull File bundle) throws IOException, InterruptedException {
+    if (bundle.isDirectory()) {
+      return importDirectory(bundle, LibraryCache.get(), configuredLibraries());
+    }
+    try (InputStream in = Files.newInputStream(bundle.toPath())) {
+      return importBundle(in);
+    }
+  }
+
+  /**
+   * Imports a zip or a tarball for the libraries configured in Jenkins.
+   *
+   * @param in The zip or the tarball, compressed or not
+   * @return What was imported, for the caller
+   * @throws IOException if the bundle is invalid, or cannot be imported
+   * @throws InterruptedException if interrupted while extracting the bundle
+   */
+  @NonNull
+  static List<String> importBundle(@NonNull InputStream in) throws IOException, InterruptedException {
+    LibraryCache cache = LibraryCache.get();
+    File dir = cache.createTempDirectory();
+    try {
+      extract(in, dir);
+      return importDirectory(dir, cache, configuredLibraries());
+    } finally {
+      Util.deleteRecursive(dir);
+    }
+  }
+
+  /**
+   * Extracts a zip or a tarball, recognized by its first bytes
+   */
+  private static void extract(InputStream in, File dir) throws IOException, InterruptedException {
+    InputStream buffered = new BufferedInputStream(in);
+    buffered.mark(2);
+    int first = buffered.read();
+    int second = buffered.read();
+    buffered.reset();
+    FilePath target = new FilePath(dir);
+    if (first == 'P' && second == 'K') {
+      target.unzipFrom(buffered);
+    } else if (first == 0x1f && second == 0x8b) {
+      target.untarFrom(buffered, FilePath.TarCompression.GZIP);
+    } else {
+      target.untarFrom(buffered, FilePath.TarCompression.NONE);
+    }
+  }
+
+  /**
+   * @return The retrievers of the libraries configured globally or in folders, with where they are configured, by name
+   * of library
+   */
+  private static Function<String, Map<HttpRetriever, ItemGroup<?>>> configuredLibraries() {
+    Map<String, Map<HttpRetriever, ItemGroup<?>>> retrievers = new HashMap<>();
+    // All the folders, whatever the permissions of the caller, who was already checked to be an administrator
+    try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+      LibraryPrefetcher.get().forEachHttpLibrary((library, context) -> retrievers
+              .computeIfAbsent(library.getName(), name -> new LinkedHashMap<>())
+              .put((HttpRetriever) library.getRetriever(), context));
+    }
+    return name -> retrievers.getOrDefault(name, Collections.emptyMap());
+  }
+
+  /**
+   * Imports an extracted bundle.
+   *
+   * @param dir        The directory of the bundle
+   * @param cache      Where to import the archives
+   * @param retrievers The retrievers of the libraries with a given name, with where they are configured
+   * @return What was imported, for the caller
+   * @throws IOException if the bundle is invalid, or cannot be imported
+   * @throws InterruptedException if interrupted while importing
+   */
+  @NonNull
+  static List<String> importDirectory(@NonNull File dir, @NonNull LibraryCache cache,
+                                      @NonNull Function<String, Map<HttpRetriever, ItemGroup<?>>> retrievers)
+          throws IOException, InterruptedException {
+    File root = findRoot(dir);
+    JSONArray libraries;
+    try {
+      String manifest = new String(Files.readAllBytes(new File(root, MANIFEST).toPath()), StandardCharsets.UTF_8);
+      libraries = JSONObject.fromObject(manifest).getJSONArray("libraries");
+    } catch (JSONException e) {
+      throw new IOException("Invalid " + MANIFEST + " in " + dir, e);
+    }
+    List<String> report = new ArrayList<>();
+    for (Object library : libraries) {
+      report.add(importLibrary(root, (JSONObject) library, cache, retrievers));
+    }
+    return report;
+  }
+
+  /**
+   * @return The directory of the manifest, which can be wrapped in a single directory, e.g. by {@code tar}
+   */
+  private static File findRoot(File dir) throws IOException {
+    if (new File(dir, MANIFEST).isFile()) {
+      return dir;
+    }
+    File[] children = dir.listFiles();
+    if (children != null && children.length == 1 && new File(children[0], MANIFEST).isFile()) {
+      return children[0];
+    }
+    throw new IOException("No " + MANIFEST + " in " + dir);
+  }
+
+  private static String importLibrary(File root, JSONObject library, LibraryCache cache,
+                                      Function<String, Map<HttpRetriever, ItemGroup<?>>> retrievers)
+          throws IOException, InterruptedException {
+    String name = library.optString("name", null);
+    String version = library.optString("version", null);
+    String file = library.optString("file", null);
+    String url = Util.fixEmptyAndTrim(library.optString("url", null));
+    if (name == null || version == null || file == null) {
+      throw new IOException("Each library of " + MANIFEST + " needs a name, a version and a file: " + library);
+    }
+    Path archive = root.toPath().resolve(file).normalize();
+    if (!archive.startsWith(root.toPath().normalize()) || !Files.isRegularFile(archive)) {
+      throw new IOException("No file " + file + " in the bundle for " + name + "@" + version);
+    }
+    // URL to cache the archive under, by key of the URL and credentials
+    Map<String, String> targets = new HashMap<>();
+    for (Map.Entry<HttpRetriever, ItemGroup<?>> configured : retrievers.apply(name).entrySet()) {
+      HttpRetriever retriever = configured.getKey();
+      String resolved = retriever.getArchiveURL(name, version);
+      if (resolved != null && (url == null || url.equals(resolved))) {
+        UsernamePasswordCredentials credentials =
+                retriever.findCredentials(retriever.getCredentialsId(), configured.getValue());
+        targets.put(HttpRetriever.keyOf(resolved, credentials), resolved);
+      }
+    }
+    if (url != null) {
+      targets.put(HttpRetriever.keyOf(url, null), url);
+    }
+    for (Map.Entry<String, String> target : targets.entrySet()) {
+      publish(cache, target.getKey(), target.getValue(), name, version, archive);
+    }
+    if (targets.isEmpty()) {
+      return "Skipped " + name + "@" + version + ": no library " + name + " is configured"
+              + (url == null ? ", and no URL is given" : "");
+    }
+    return "Imported " + name + "@" + version + " for " + targets.size() + " URL and credentials";
+  }
+
+  private static void publish(LibraryCache cache, String key, String url, @CheckForNull String name,
+                              @CheckForNull String version, Path archive) throws IOException, InterruptedException {
+    cache.open(key, false, cached -> {
+      File copy = cache.createTempFile();
+      Files.copy(archive, copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      // Without validators, so that the server is asked for the whole archive once it can be reached
+      return cache.publish(key, url, name, version, copy, null, null);
+    }).close();
+  }
+}
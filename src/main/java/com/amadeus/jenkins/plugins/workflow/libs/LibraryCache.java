@@ -0,0 +1,992 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-local cache of the library archives downloaded by {@link HttpRetriever}.
+ * <p>
+ * Archives are keyed by their resolved URL and the credentials used to download them. They are stored along with
+ * the validators (ETag, Last-Modified) returned by the server, so that they can be revalidated with a conditional
+ * request instead of being downloaded again.
+ * <p>
+ * The files of the extracted archives are kept in a {@link LibraryStore}, under the same directory.
+ * <p>
+ * The metadata of the entries is kept in a {@link LibraryJournal}, so that the startup does not read the metadata of
+ * every archive, and updated incrementally as entries change.
+ * <p>
+ * The cache can be shared by several controllers, e.g. on NFS, so that an archive downloaded by one of them serves all
+ * the others. Files are then published by atomic renames, entries are locked across processes with file locks, and
+ * the metadata of each entry is kept in its own file instead, read again from the disk whenever the entry is used, to
+ * pick up the entries that the other controllers published.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class LibraryCache {
+
+  private static final Logger LOGGER = Logger.getLogger(LibraryCache.class.getName());
+
+  /**
+   * System property to move the cache out of $JENKINS_HOME/caches/http-shared-libraries
+   */
+  static final String ROOT_DIR_PROPERTY = LibraryCache.class.getName() + ".rootDir";
+
+  /**
+   * How long, in seconds, 404 and 401 responses are remembered, so that a typo in a popular Jenkinsfile does not
+   * send every build to the server. 0 to disable.
+   */
+  private static final int FAILURE_TTL = SystemProperties.getInteger(LibraryCache.class.getName() + ".failureTtl", 60);
+
+  /**
+   * How long, in seconds, a URL found by a version validation is remembered, so that configuration pages listing many
+   * libraries render without checking each of them against the server again. 0 to disable.
+   */
+  private static final int VALIDATION_TTL =
+          SystemProperties.getInteger(LibraryCache.class.getName() + ".validationTtl", 300);
+
+  /**
+   * System property telling that the cache directory is shared with other controllers
+   */
+  static final String SHARED_PROPERTY = LibraryCache.class.getName() + ".shared";
+
+  /**
+   * Age after which the temporary files of a shared cache are deleted, as they may belong to another controller
+   */
+  private static final long TMP_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+  private static final String ARCHIVE_EXTENSION = ".zip";
+  private static final String METADATA_EXTENSION = ".properties";
+  private static final String LOCK_EXTENSION = ".lock";
+  private static final String TMP_DIR = "tmp";
+  private static final String INDEX_FILE = "index.log";
+
+  private volatile File root;
+  private final boolean shared;
+  private final ConcurrentMap<String, Entry> index = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, KeyLock> locks = new ConcurrentHashMap<>();
+
+  /**
+   * How the entries were used by the builds, by key
+   */
+  private final ConcurrentMap<String, Usage> usages = new ConcurrentHashMap<>();
+  private volatile boolean loaded;
+
+  /**
+   * Persistent index of the entries, null for a shared cache
+   */
+  private volatile LibraryJournal journal;
+  private final LibraryStore store = new LibraryStore(this);
+  private final LibraryTreeCache trees = new LibraryTreeCache();
+
+  /**
+   * Recent 404 and 401 responses, by resolved URL and credentials
+   */
+  private final Cache<String, Integer> failures = Caffeine.newBuilder()
+          .expireAfterWrite(FAILURE_TTL, TimeUnit.SECONDS)
+          .maximumSize(10_000)
+          .build();
+
+  /**
+   * Recent successful version validations, by resolved URL and credentials
+   */
+  private final Cache<String, Boolean> validations = Caffeine.newBuilder()
+          .expireAfterWrite(VALIDATION_TTL, TimeUnit.SECONDS)
+          .maximumSize(10_000)
+          .build();
+
+  /**
+   * Versions published in the repositories, by URL of their metadata and credentials. Kept while in use, as stale
+   * metadata is revalidated in the background rather than evicted.
+   */
+  private final Cache<String, LibraryVersions> versions = Caffeine.newBuilder()
+          .expireAfterAccess(1, TimeUnit.DAYS)
+          .maximumSize(1_000)
+          .build();
+
+  public LibraryCache() {
+    this.shared = SystemProperties.getBoolean(SHARED_PROPERTY);
+  }
+
+  LibraryCache(@NonNull File root) {
+    this(root, false);
+  }
+
+  /**
+   * @param shared Whether the directory is shared with other controllers
+   */
+  LibraryCache(@NonNull File root, boolean shared) {
+    this.root = root;
+    this.shared = shared;
+  }
+
+  static LibraryCache get() {
+    return ExtensionList.lookupSingleton(LibraryCache.class);
+  }
+
+  /**
+   * @param url         Resolved URL of the archive
+   * @param credentials Fingerprint of the credentials used to download it, if any
+   * @return The key of the archive in the cache
+   */
+  static String keyOf(@NonNull String url, @CheckForNull String credentials) {
+    return DigestUtils.sha256Hex(url + '\n' + Util.fixNull(credentials));
+  }
+
+  File getRoot() {
+    if (root == null) {
+      String dir = SystemProperties.getString(ROOT_DIR_PROPERTY);
+      root = dir != null ? new File(dir) : new File(Jenkins.get().getRootDir(), "caches/http-shared-libraries");
+    }
+    return root;
+  }
+
+  /**
+   * @return The entries currently in the cache
+   */
+  Collection<Entry> getEntries() {
+    load();
+    if (shared) {
+      scan(true);
+    }
+    return Collections.unmodifiableCollection(new ArrayList<>(index.values()));
+  }
+
+  @CheckForNull
+  Entry get(@NonNull String key) {
+    load();
+    if (shared) {
+      refresh(key);
+    }
+    return index.get(key);
+  }
+
+  /**
+   * Opens an entry for reading, without checking whether it is up to date.
+   *
+   * @param key Key of the archive
+   * @return The archive, locked for reading until closed, or null if it is not in the cache
+   * @throws IOException if the entry cannot be locked
+   */
+  @CheckForNull
+  Handle open(@NonNull String key) throws IOException {
+    KeyLock lock = lockOf(key);
+    lock.lockRead();
+    Entry entry = get(key);
+    File archive = entry == null ? null : archiveOf(key);
+    if (archive == null || !archive.isFile()) {
+      lock.unlockRead();
+      return null;
+    }
+    return new Handle(entry, archive, lock);
+  }
+
+  /**
+   * Opens an entry for reading, after having given the loader a chance to download or revalidate it.
+   * The loader runs while no other thread can read nor write the entry.
+   *
+   * @param key    Key of the archive
+   * @param join   Whether an entry loaded by another thread while this one was waiting can be used as is, so that
+   *               concurrent retrievals of the same archive only cost one request
+   * @param loader Brings the cached entry up to date
+   * @return The archive, locked for reading until closed
+   * @throws IOException if the loader fails
+   * @throws InterruptedException if interrupted while loading
+   */
+  @NonNull
+  Handle open(@NonNull String key, boolean join, @NonNull Loader loader) throws IOException, InterruptedException {
+    KeyLock lock = lockOf(key);
+    long requested = System.currentTimeMillis();
+    lock.lockWrite();
+    Entry entry;
+    try {
+      Entry cached = get(key);
+      if (cached != null && !archiveOf(key).isFile()) {
+        cached = null;
+      }
+      entry = join && cached != null && cached.getFetched() >= requested ? cached : loader.load(cached);
+      // Downgrade, so that nobody replaces the archive before the caller is done with it
+      lockOf(key).lockRead();
+    } finally {
+      lock.unlockWrite();
+    }
+    if (shared) {
+      // Another controller may have replaced the archive while the lock was downgraded
+      Entry current = get(key);
+      if (current != null) {
+        entry = current;
+      }
+    }
+    return new Handle(entry, archiveOf(key), lock);
+  }
+
+  /**
+   * @return A new file in the cache directory, where an archive can be downloaded before being published
+   * @throws IOException if the file cannot be created
+   */
+  File createTempFile() throws IOException {
+    // Loading the cache cleans up the temporary files
+    load();
+    Path tmp = new File(getRoot(), TMP_DIR).toPath();
+    Files.createDirectories(tmp);
+    return Files.createTempFile(tmp, "download", ARCHIVE_EXTENSION).toFile();
+  }
+
+  /**
+   * @return A new directory in the cache directory, on the same file system as the cache
+   * @throws IOException if the directory cannot be created
+   */
+  File createTempDirectory() throws IOException {
+    // Loading the cache cleans up the temporary files
+    load();
+    Path tmp = new File(getRoot(), TMP_DIR).toPath();
+    Files.createDirectories(tmp);
+    return Files.createTempDirectory(tmp, "extract").toFile();
+  }
+
+  /**
+   * @return The store of the extracted archives
+   */
+  LibraryStore getStore() {
+    return store;
+  }
+
+  /**
+   * @return The extracted libraries kept in memory
+   */
+  LibraryTreeCache getTrees() {
+    return trees;
+  }
+
+  /**
+   * Moves a downloaded archive into the cache. Must be called from a {@link Loader}.
+   *
+   * @param key          Key of the archive
+   * @param url          URL it was downloaded from
+   * @param library      Name of the library, if known
+   * @param version      Version of the library, if known
+   * @param download     The downloaded archive, from {@link #createTempFile()}
+   * @param etag         ETag returned by the server, if any
+   * @param lastModified Last-Modified date returned by the server, if any
+   * @return The new entry
+   * @throws IOException if the archive cannot be moved
+   */
+  Entry publish(@NonNull String key, @NonNull String url, @CheckForNull String library, @CheckForNull String version,
+                @NonNull File download, @CheckForNull String etag, @CheckForNull String lastModified)
+          throws IOException {
+    String digest;
+    try (InputStream in = Files.newInputStream(download.toPath())) {
+      digest = DigestUtils.sha256Hex(in);
+    }
+    Entry entry = new Entry(key, url, library, version, etag, lastModified, download.length(),
+            System.currentTimeMillis(), digest);
+    if (index.remove(key) != null) {
+      // Forgotten before being replaced, so that a crash in between does not leave the new archive indexed with the
+      // ETag and digest of the previous one, but an orphan archive, deleted on restart
+      forget(key);
+    }
+    Files.move(download.toPath(), archiveOf(key).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    persist(entry);
+    index.put(key, entry);
+    return entry;
+  }
+
+  /**
+   * Records that the server confirmed the cached archive is still valid. Must be called from a {@link Loader}.
+   *
+   * @param entry The revalidated entry
+   * @return The updated entry
+   * @throws IOException if the metadata cannot be saved
+   */
+  Entry revalidated(@NonNull Entry entry) throws IOException {
+    Entry updated = new Entry(entry.key, entry.url, entry.library, entry.version, entry.etag, entry.lastModified,
+            entry.size, System.currentTimeMillis(), entry.digest);
+    persist(updated);
+    index.put(updated.key, updated);
+    return updated;
+  }
+
+  /**
+   * Removes an entry from the cache, waiting for its current readers.
+   *
+   * @param key Key of the archive
+   * @throws IOException if the files cannot be deleted
+   */
+  void invalidate(@NonNull String key) throws IOException {
+    load();
+    KeyLock lock = lockOf(key);
+    lock.lockWrite();
+    try {
+      index.remove(key);
+      usages.remove(key);
+      forget(key);
+      Files.deleteIfExists(archiveOf(key).toPath());
+    } finally {
+      lock.unlockWrite();
+    }
+  }
+
+  /**
+   * Removes the entries matching a filter, waiting for their current readers, then the files extracted from them that
+   * no other entry uses.
+   *
+   * @param filter The entries to remove
+   * @return The removed entries
+   * @throws IOException if the files of an entry cannot be deleted
+   */
+  List<Entry> purge(@NonNull Predicate<Entry> filter) throws IOException {
+    List<Entry> purged = new ArrayList<>();
+    for (Entry entry : getEntries()) {
+      if (filter.test(entry)) {
+        invalidate(entry.key);
+        purged.add(entry);
+      }
+    }
+    if (!purged.isEmpty()) {
+      pruneStore();
+    }
+    return purged;
+  }
+
+  /**
+   * Deletes the files extracted from the archives that are no longer in the cache. Not done for a shared cache, as the
+   * other controllers may be extracting the archives they just downloaded.
+   */
+  private void pruneStore() {
+    if (shared) {
+      return;
+    }
+    Set<String> digests = new HashSet<>();
+    for (Entry entry : index.values()) {
+      if (entry.digest != null) {
+        digests.add(entry.digest);
+      }
+    }
+    try {
+      int deleted = store.prune(digests);
+      LOGGER.log(Level.FINE, "Deleted {0} files no longer used from the store of {1}", new Object[]{deleted, root});
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Cannot delete the files no longer used from the store of " + getRoot(), e);
+    }
+  }
+
+  /**
+   * Records that a build used an entry
+   *
+   * @param key Key of the archive
+   */
+  void recordAccess(@NonNull String key) {
+    load();
+    Usage usage = usages.computeIfAbsent(key, k -> new Usage(0));
+    usage.record();
+    if (journal != null) {
+      try {
+        journal.access(key, usage.getLastAccess());
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Cannot record the use of cache entry " + key, e);
+      }
+    }
+  }
+
+  /**
+   * @param key Key of the archive
+   * @return How the entry was used by the builds, null if it was not
+   */
+  @CheckForNull
+  Usage getUsage(@NonNull String key) {
+    return usages.get(key);
+  }
+
+  /**
+   * @param key Key of the resolved URL and credentials
+   * @return The status code of a recent 404 or 401 response, if any
+   */
+  @CheckForNull
+  Integer getFailure(@NonNull String key) {
+    return failures.getIfPresent(key);
+  }
+
+  /**
+   * Remembers a response for a while, if it is a 404 or a 401.
+   *
+   * @param key        Key of the resolved URL and credentials
+   * @param statusCode Status code of the response
+   */
+  void recordFailure(@NonNull String key, int statusCode) {
+    if (FAILURE_TTL > 0 && (statusCode == HttpURLConnection.HTTP_NOT_FOUND
+            || statusCode == HttpURLConnection.HTTP_UNAUTHORIZED)) {
+      failures.put(key, statusCode);
+    }
+  }
+
+  void clearFailure(@NonNull String key) {
+    failures.invalidate(key);
+  }
+
+  /**
+   * @param key Key of the URL of the metadata and credentials
+   * @return The versions last read from the metadata, fresh or not, if any
+   */
+  @CheckForNull
+  LibraryVersions getVersions(@NonNull String key) {
+    return versions.getIfPresent(key);
+  }
+
+  void putVersions(@NonNull String key, @NonNull LibraryVersions libraryVersions) {
+    versions.put(key, libraryVersions);
+  }
+
+  /**
+   * @param key Key of the resolved URL and credentials
+   * @return Whether a recent version validation found the URL
+   */
+  boolean isValidated(@NonNull String key) {
+    return validations.getIfPresent(key) != null;
+  }
+
+  /**
+   * Remembers for a while that a version validation found the URL.
+   *
+   * @param key Key of the resolved URL and credentials
+   */
+  void recordValidated(@NonNull String key) {
+    if (VALIDATION_TTL > 0) {
+      validations.put(key, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * @return The lock of an entry, to be locked once by the caller, and kept until every caller unlocked it
+   */
+  private KeyLock lockOf(String key) {
+    return locks.compute(key, (k, lock) -> (lock == null ? new KeyLock(k) : lock).retain());
+  }
+
+  /**
+   * @return The number of entries locked, or waited for, by the threads of this controller
+   */
+  int getLockCount() {
+    return locks.size();
+  }
+
+  private File archiveOf(String key) {
+    return new File(getRoot(), key + ARCHIVE_EXTENSION);
+  }
+
+  private File metadataOf(String key) {
+    return new File(getRoot(), key + METADATA_EXTENSION);
+  }
+
+  private Path lockFileOf(String key) {
+    return new File(getRoot(), key + LOCK_EXTENSION).toPath();
+  }
+
+  private void load() {
+    if (loaded) {
+      return;
+    }
+    synchronized (this) {
+      if (loaded) {
+        return;
+      }
+      File dir = getRoot();
+      try {
+        cleanUp(new File(dir, TMP_DIR));
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Cannot clean up the temporary downloads of " + dir, e);
+      }
+      if (shared) {
+        scan(false);
+      } else {
+        loadIndex(dir);
+        deleteOrphans(dir);
+      }
+      loaded = true;
+      // e.g. the archives replaced by newer ones before the restart
+      pruneStore();
+    }
+  }
+
+  /**
+   * Loads the entries from the persistent index. If there is none yet, or if it cannot be read, it is rebuilt from the
+   * metadata files, e.g. written by a previous version of the plugin, which are then deleted.
+   */
+  private void loadIndex(File dir) {
+    LibraryJournal log = new LibraryJournal(new File(dir, INDEX_FILE));
+    journal = log;
+    if (log.exists()) {
+      try {
+        index.putAll(log.load());
+        log.getAccesses().forEach((key, time) -> usages.putIfAbsent(key, new Usage(time)));
+        return;
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Rebuilding the cache index of " + dir + ", that cannot be read", e);
+      }
+    }
+    scan(false);
+    try {
+      log.reset(index);
+      File[] files = dir.listFiles((d, name) -> name.endsWith(METADATA_EXTENSION));
+      for (File file : files == null ? new File[0] : files) {
+        Files.deleteIfExists(file.toPath());
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Cannot write the cache index of " + dir, e);
+    }
+  }
+
+  /**
+   * Deletes the archives that are not in the index, e.g. published or replaced by a previous run that crashed before
+   * indexing them.
+   */
+  private void deleteOrphans(File dir) {
+    File[] files = dir.listFiles((d, name) -> name.endsWith(ARCHIVE_EXTENSION));
+    for (File file : files == null ? new File[0] : files) {
+      String name = file.getName();
+      if (file.isFile() && !index.containsKey(name.substring(0, name.length() - ARCHIVE_EXTENSION.length()))) {
+        try {
+          Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Cannot delete the archive " + file + ", that is not in the cache index", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes the temporary files left by a previous run. The recent ones of a shared cache are kept, as they may be
+   * in use by another controller.
+   */
+  private void cleanUp(File tmp) throws IOException {
+    if (!shared) {
+      Util.deleteRecursive(tmp);
+      return;
+    }
+    File[] files = tmp.listFiles();
+    if (files != null) {
+      long now = System.currentTimeMillis();
+      for (File file : files) {
+        if (now - file.lastModified() > TMP_MAX_AGE) {
+          Util.deleteRecursive(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the metadata of all the entries in the cache directory
+   *
+   * @param replace Whether to replace the entries already in memory, and forget the ones no longer on disk
+   */
+  private void scan(boolean replace) {
+    File[] files = getRoot().listFiles((d, name) -> name.endsWith(METADATA_EXTENSION));
+    if (files == null) {
+      return;
+    }
+    Set<String> keys = new HashSet<>();
+    for (File file : files) {
+      try {
+        Entry entry = readMetadata(file);
+        keys.add(entry.key);
+        if (replace) {
+          index.put(entry.key, entry);
+        } else {
+          index.putIfAbsent(entry.key, entry);
+        }
+      } catch (IOException | RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Ignoring corrupted cache entry " + file, e);
+      }
+    }
+    if (replace) {
+      index.keySet().retainAll(keys);
+    }
+  }
+
+  /**
+   * Reads the metadata of an entry again, as another controller sharing the cache may have changed it
+   */
+  private void refresh(String key) {
+    File file = metadataOf(key);
+    if (!file.isFile()) {
+      index.remove(key);
+      return;
+    }
+    try {
+      index.put(key, readMetadata(file));
+    } catch (IOException | RuntimeException e) {
+      // Being replaced by another controller, or corrupted: the entry in memory is the best guess
+      LOGGER.log(Level.FINE, "Cannot read cache entry " + file, e);
+    }
+  }
+
+  private void persist(Entry entry) throws IOException {
+    if (journal != null) {
+      journal.put(entry);
+    } else {
+      writeMetadata(entry);
+    }
+  }
+
+  /**
+   * Removes an entry from the persistent index, or deletes its metadata file
+   */
+  private void forget(String key) throws IOException {
+    if (journal != null) {
+      journal.remove(key);
+    }
+    Files.deleteIfExists(metadataOf(key).toPath());
+  }
+
+  private Entry readMetadata(File file) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      properties.load(in);
+    }
+    String name = file.getName();
+    return new Entry(
+            name.substring(0, name.length() - METADATA_EXTENSION.length()),
+            properties.getProperty("url"),
+            properties.getProperty("library"),
+            properties.getProperty("version"),
+            properties.getProperty("etag"),
+            properties.getProperty("lastModified"),
+            Long.parseLong(properties.getProperty("size")),
+            Long.parseLong(properties.getProperty("fetched")),
+            properties.getProperty("digest"));
+  }
+
+  private void writeMetadata(Entry entry) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("url", entry.url);
+    if (entry.library != null) {
+      properties.setProperty("library", entry.library);
+    }
+    if (entry.version != null) {
+      properties.setProperty("version", entry.version);
+    }
+    if (entry.etag != null) {
+      properties.setProperty("etag", entry.etag);
+    }
+    if (entry.lastModified != null) {
+      properties.setProperty("lastModified", entry.lastModified);
+    }
+    properties.setProperty("size", Long.toString(entry.size));
+    properties.setProperty("fetched", Long.toString(entry.fetched));
+    if (entry.digest != null) {
+      properties.setProperty("digest", entry.digest);
+    }
+    File tmp = createTempFile();
+    try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+      properties.store(out, null);
+    }
+    Files.move(tmp.toPath(), metadataOf(entry.key).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Downloads or revalidates an archive
+   */
+  @FunctionalInterface
+  interface Loader {
+    /**
+     * @param cached The entry currently in the cache, if any
+     * @return The entry to use, either the cached one or a newly published one
+     * @throws IOException if the archive cannot be retrieved
+     * @throws InterruptedException if interrupted while retrieving the archive
+     */
+    @NonNull
+    Entry load(@CheckForNull Entry cached) throws IOException, InterruptedException;
+  }
+
+  /**
+   * An archive of the cache, that cannot be replaced nor removed until it is closed
+   */
+  static final class Handle implements AutoCloseable {
+    private final Entry entry;
+    private final File archive;
+    private KeyLock lock;
+
+    Handle(Entry entry, File archive, KeyLock lock) {
+      this.entry = entry;
+      this.archive = archive;
+      this.lock = lock;
+    }
+
+    Entry getEntry() {
+      return entry;
+    }
+
+    File getArchive() {
+      return archive;
+    }
+
+    @Override
+    public void close() {
+      if (lock != null) {
+        lock.unlockRead();
+        lock = null;
+      }
+    }
+  }
+
+  /**
+   * How an entry was used by the builds
+   */
+  static final class Usage {
+    private final AtomicLong hits = new AtomicLong();
+    private volatile long lastAccess;
+
+    /**
+     * @param lastAccess When a build last used the entry before the startup, 0 if unknown
+     */
+    Usage(long lastAccess) {
+      this.lastAccess = lastAccess;
+    }
+
+    void record() {
+      lastAccess = System.currentTimeMillis();
+      hits.incrementAndGet();
+    }
+
+    /**
+     * @return The number of builds that used the entry since the startup
+     */
+    long getHits() {
+      return hits.get();
+    }
+
+    /**
+     * @return When a build last used the entry, in milliseconds since the epoch, 0 if unknown
+     */
+    long getLastAccess() {
+      return lastAccess;
+    }
+  }
+
+  /**
+   * Lock of an entry. In a shared cache, it also locks the entry for the other controllers, with a lock on a file next
+   * to the archive: the threads of this controller reading the entry hold a single shared file lock between them, as
+   * file locks are held on behalf of the whole JVM, and the thread writing it holds an exclusive file lock.
+   */
+  private final class KeyLock {
+    private final String key;
+    private final ReentrantReadWriteLock local = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private FileLock fileLock;
+    private int holders;
+    /**
+     * Number of threads holding or waiting for the lock, only changed while computing the entry of {@link #locks}
+     */
+    private int users;
+
+    KeyLock(String key) {
+      this.key = key;
+    }
+
+    void lockRead() throws IOException {
+      local.readLock().lock();
+      try {
+        acquire(false);
+      } catch (IOException | RuntimeException e) {
+        local.readLock().unlock();
+        discard();
+        throw e;
+      }
+    }
+
+    void unlockRead() {
+      release();
+      local.readLock().unlock();
+      discard();
+    }
+
+    void lockWrite() throws IOException {
+      local.writeLock().lock();
+      try {
+        acquire(true);
+      } catch (IOException | RuntimeException e) {
+        local.writeLock().unlock();
+        discard();
+        throw e;
+      }
+    }
+
+    void unlockWrite() {
+      release();
+      local.writeLock().unlock();
+      discard();
+    }
+
+    private KeyLock retain() {
+      users++;
+      return this;
+    }
+
+    /**
+     * Forgets the lock once no thread holds nor waits for it, so that the locks do not pile up with the keys
+     */
+    private void discard() {
+      locks.computeIfPresent(key, (k, lock) -> lock != this || --users > 0 ? lock : null);
+    }
+
+    /**
+     * Only blocks when no other thread of this controller holds the file lock: the local lock already excludes the
+     * readers when writing, and the writer when reading.
+     */
+    private synchronized void acquire(boolean exclusive) throws IOException {
+      if (!shared) {
+        return;
+      }
+      if (holders == 0) {
+        Files.createDirectories(getRoot().toPath());
+        channel = FileChannel.open(lockFileOf(key), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+          fileLock = channel.lock(0, Long.MAX_VALUE, !exclusive);
+        } catch (IOException | RuntimeException e) {
+          channel.close();
+          channel = null;
+          throw e;
+        }
+      }
+      holders++;
+    }
+
+    private synchronized void release() {
+      if (!shared) {
+        return;
+      }
+      try {
+        if (--holders == 0) {
+          channel.close();
+          channel = null;
+          fileLock = null;
+        } else if (!fileLock.isShared()) {
+          // The writer downgraded to reading
+          fileLock.release();
+          fileLock = channel.lock(0, Long.MAX_VALUE, true);
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Cannot release the lock of cache entry " + key, e);
+      }
+    }
+  }
+
+  /**
+   * Metadata of a cached archive
+   */
+  static final class Entry {
+    private final String key;
+    private final String url;
+    private final String library;
+    private final String version;
+    private final String etag;
+    private final String lastModified;
+    private final long size;
+    private final long fetched;
+    private final String digest;
+
+    Entry(String key, String url, String library, String version, String etag, String lastModified, long size,
+          long fetched, String digest) {
+      this.key = key;
+      this.url = url;
+      this.library = library;
+      this.version = version;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.size = size;
+      this.fetched = fetched;
+      this.digest = digest;
+    }
+
+    String getKey() {
+      return key;
+    }
+
+    String getUrl() {
+      return url;
+    }
+
+    /**
+     * @return The name of the library, null if it was cached by a version that did not record it
+     */
+    @CheckForNull
+    String getLibrary() {
+      return library;
+    }
+
+    /**
+     * @return The version of the library, null if it was cached by a version that did not record it
+     */
+    @CheckForNull
+    String getVersion() {
+      return version;
+    }
+
+    @CheckForNull
+    String getETag() {
+      return etag;
+    }
+
+    @CheckForNull
+    String getLastModified() {
+      return lastModified;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    /**
+     * @return When the archive was last downloaded or revalidated, in milliseconds since the epoch
+     */
+    long getFetched() {
+      return fetched;
+    }
+
+    /**
+     * @return The SHA-256 of the archive, null if it was cached by a version that did not record it
+     */
+    @CheckForNull
+    String getDigest() {
+      return digest;
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Functions;
+import hudson.Util;
+import hudson.model.Api;
+import hudson.model.ManagementLink;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Page of <em>Manage Jenkins</em> showing the libraries in the {@link LibraryCache}, with how the builds used them,
+ * and allowing to purge or download them again, e.g. to fix a bad publish without restarting the controller.
+ * <p>
+ * The entries are also available through the REST API, and the actions can be scripted:
+ * <pre>
+ * curl -u user:token "$JENKINS_URL/manage/http-shared-libraries-cache/api/json"
+ * curl -X POST -u user:token "$JENKINS_URL/manage/http-shared-libraries-cache/purge?library=NAME&amp;version=VERSION"
+ * curl -X POST -u user:token "$JENKINS_URL/manage/http-shared-libraries-cache/rewarm?library=NAME&amp;version=VERSION"
+ * curl -X POST -u user:token --data-binary @bundle.zip "$JENKINS_URL/manage/http-shared-libraries-cache/import"
+ * </pre>
+ */
+@Extension
+@ExportedBean
+@Restricted(NoExternalUse.class)
+public class LibraryCacheManagement extends ManagementLink implements StaplerProxy {
+
+  @Override
+  public String getIconFileName() {
+    return "folder.png";
+  }
+
+  @Override
+  public String getDisplayName() {
+    return "HTTP Shared Libraries Cache";
+  }
+
+  @Override
+  public String getDescription() {
+    return "See, purge and warm up the cached archives of the libraries retrieved through HTTP.";
+  }
+
+  @Override
+  public String getUrlName() {
+    return "http-shared-libraries-cache";
+  }
+
+  @NonNull
+  @Override
+  public Permission getRequiredPermission() {
+    return Jenkins.ADMINISTER;
+  }
+
+  @NonNull
+  @Override
+  public Category getCategory() {
+    return Category.TOOLS;
+  }
+
+  @Override
+  public Object getTarget() {
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    return this;
+  }
+
+  public Api getApi() {
+    return new Api(this);
+  }
+
+  /**
+   * @return The cached archives, the most recently used first
+   */
+  @Exported(name = "entries", inline = true)
+  public List<CachedLibrary> getEntries() {
+    LibraryCache cache = LibraryCache.get();
+    List<CachedLibrary> entries = new ArrayList<>();
+    for (LibraryCache.Entry entry : cache.getEntries()) {
+      entries.add(new CachedLibrary(entry, cache.getUsage(entry.getKey())));
+    }
+    entries.sort(Comparator.comparingLong(CachedLibrary::getLastUsed).reversed());
+    return entries;
+  }
+
+  /**
+   * Removes the cached archives matching all the given criteria. At least one is required.
+   *
+   * @param library   Name of the library
+   * @param version   Version of the library
+   * @param olderThan Minimum number of days since the archive was last downloaded, revalidated or used, 0 for all
+   */
+  @RequirePOST
+  public HttpResponse doPurge(@QueryParameter String library, @QueryParameter String version,
+                              @QueryParameter String olderThan) throws IOException {
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    String name = Util.fixEmptyAndTrim(library);
+    String ver = Util.fixEmptyAndTrim(version);
+    String days = Util.fixEmptyAndTrim(olderThan);
+    if (name == null && ver == null && days == null) {
+      return HttpResponses.errorWithoutStack(HttpURLConnection.HTTP_BAD_REQUEST,
+              "Give a library, a version or an age, 0 days to purge all the cache");
+    }
+    Predicate<LibraryCache.Entry> filter = matching(name, ver);
+    if (days != null) {
+      long limit;
+      try {
+        limit = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(Long.parseLong(days));
+      } catch (NumberFormatException e) {
+        return HttpResponses.errorWithoutStack(HttpURLConnection.HTTP_BAD_REQUEST, "Not a number of days: " + days);
+      }
+      LibraryCache cache = LibraryCache.get();
+      filter = filter.and(entry -> lastUsed(entry, cache.getUsage(entry.getKey())) <= limit);
+    }
+    LibraryCache.get().purge(filter);
+    return HttpResponses.redirectToDot();
+  }
+
+  /**
+   * Downloads again, in the background, the cached archives of the given library and version. If both are given,
+   * the version is downloaded even if it is not cached, e.g. because it was just purged.
+   *
+   * @param library Name of the library, all if empty
+   * @param version Version of the library, all if empty
+   */
+  @RequirePOST
+  public HttpResponse doRewarm(@QueryParameter String library, @QueryParameter String version) {
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    String name = Util.fixEmptyAndTrim(library);
+    String ver = Util.fixEmptyAndTrim(version);
+    Set<Map.Entry<String, String>> libraries = new LinkedHashSet<>();
+    if (name != null && ver != null) {
+      libraries.add(new AbstractMap.SimpleImmutableEntry<>(name, ver));
+    } else {
+      Predicate<LibraryCache.Entry> filter = matching(name, ver);
+      for (LibraryCache.Entry entry : LibraryCache.get().getEntries()) {
+        // Archives cached by a previous version of the plugin are not known to belong to a library
+        if (entry.getLibrary() != null && entry.getVersion() != null && filter.test(entry)) {
+          libraries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getLibrary(), entry.getVersion()));
+        }
+      }
+    }
+    try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+      for (Map.Entry<String, String> lib : libraries) {
+        LibraryPrefetcher.get().prefetchPublished(lib.getKey(), lib.getValue());
+      }
+    }
+    return HttpResponses.redirectToDot();
+  }
+
+  /**
+   * Imports the bundle of archives posted as the body of the request, see {@link LibraryBundle}.
+   *
+   * @return What was imported, as plain text
+   */
+  @RequirePOST
+  public HttpResponse doImport(StaplerRequest req) throws IOException, InterruptedException {
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    List<String> report;
+    try (InputStream in = req.getInputStream()) {
+      report = LibraryBundle.importBundle(in);
+    } catch (IOException e) {
+      return HttpResponses.errorWithoutStack(HttpURLConnection.HTTP_BAD_REQUEST, e.getMessage());
+    }
+    return HttpResponses.text(String.join("\n", report) + "\n");
+  }
+
+  private static Predicate<LibraryCache.Entry> matching(@CheckForNull String library, @CheckForNull String version) {
+    return entry -> (library == null || library.equals(entry.getLibrary()))
+            && (version == null || version.equals(entry.getVersion()));
+  }
+
+  /**
+   * @return When the archive was last downloaded, revalidated or used by a build
+   */
+  private static long lastUsed(LibraryCache.Entry entry, @CheckForNull LibraryCache.Usage usage) {
+    return Math.max(entry.getFetched(), usage == null ? 0 : usage.getLastAccess());
+  }
+
+  /**
+   * A cached archive, as shown on the page and exported by the REST API
+   */
+  @ExportedBean
+  public static final class CachedLibrary {
+    private final LibraryCache.Entry entry;
+    private final LibraryCache.Usage usage;
+
+    CachedLibrary(LibraryCache.Entry entry, LibraryCache.Usage usage) {
+      this.entry = entry;
+      this.usage = usage;
+    }
+
+    @Exported
+    public String getLibrary() {
+      return entry.getLibrary();
+    }
+
+    @Exported
+    public String getVersion() {
+      return entry.getVersion();
+    }
+
+    @Exported
+    public String getUrl() {
+      return entry.getUrl();
+    }
+
+    @Exported
+    public String getEtag() {
+      return entry.getETag();
+    }
+
+    @Exported
+    public String getLastModified() {
+      return entry.getLastModified();
+    }
+
+    /**
+     * @return The size of the archive, in bytes
+     */
+    @Exported
+    public long getSize() {
+      return entry.getSize();
+    }
+
+    /**
+     * @return When the archive was last downloaded or revalidated, in milliseconds since the epoch
+     */
+    @Exported
+    public long getFetched() {
+      return entry.getFetched();
+    }
+
+    /**
+     * @return When a build last used the archive, in milliseconds since the epoch, 0 if none did
+     */
+    @Exported
+    public long getLastAccess() {
+      return usage == null ? 0 : usage.getLastAccess();
+    }
+
+    /**
+     * @return The number of builds that used the archive since the startup
+     */
+    @Exported
+    public long getHits() {
+      return usage == null ? 0 : usage.getHits();
+    }
+
+    long getLastUsed() {
+      return lastUsed(entry, usage);
+    }
+
+    public String getSizeString() {
+      return Functions.humanReadableByteSize(getSize());
+    }
+
+    public String getFetchedAgo() {
+      return Util.getTimeSpanString(System.currentTimeMillis() - getFetched());
+    }
+
+    public String getLastAccessAgo() {
+      return getLastAccess() == 0 ? "" : Util.getTimeSpanString(System.currentTimeMillis() - getLastAccess());
+    }
+  }
+}
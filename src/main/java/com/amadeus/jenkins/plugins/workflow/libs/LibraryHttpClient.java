@@ -0,0 +1,224 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.protocol.HttpContext;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP clients shared by all the {@link HttpRetriever}s.
+ * <p>
+ * Connections are kept alive and pooled per host, so that concurrent and successive downloads from the same
+ * repository reuse a few connections instead of opening, and negotiating TLS for, one connection per request.
+ * Authentication stays per request, through the context given to each call, but the authentication schemes learned
+ * from the challenges of a host are kept per credentials, so that only the first request to the host is challenged.
+ * A token header is only added to the requests sent to the host it is meant for, so that it does not follow a
+ * redirection to another host.
+ * <p>
+ * Archives are downloaded by a non-blocking client, whose few I/O threads serve all the transfers in progress.
+ * A thread waiting for a download is parked on its future rather than blocked in a socket read.
+ */
+@Restricted(NoExternalUse.class)
+final class LibraryHttpClient {
+
+  private static final String PREFIX = LibraryHttpClient.class.getName();
+
+  /**
+   * Maximum number of connections opened to a single host. Requests beyond wait for a connection to be released.
+   */
+  private static final int MAX_CONNECTIONS_PER_HOST = SystemProperties.getInteger(PREFIX + ".maxConnectionsPerHost", 8);
+
+  private static final int MAX_CONNECTIONS = SystemProperties.getInteger(PREFIX + ".maxConnections", 64);
+
+  /**
+   * How long, in seconds, an unused connection is kept open
+   */
+  private static final int IDLE_TIMEOUT = SystemProperties.getInteger(PREFIX + ".idleTimeout", 60);
+
+  /**
+   * How long, in seconds, to wait for a connection to a host to be established
+   */
+  private static final int CONNECT_TIMEOUT = SystemProperties.getInteger(PREFIX + ".connectTimeout", 10);
+
+  /**
+   * How long, in seconds, to wait for data from a host, between two packets of a response. A stalled download fails
+   * after this delay rather than holding its connection and the threads waiting for it forever.
+   */
+  private static final int SOCKET_TIMEOUT = SystemProperties.getInteger(PREFIX + ".socketTimeout", 60);
+
+  /**
+   * How long, in seconds, a request waits for a connection of the pool to be released
+   */
+  private static final int CONNECTION_REQUEST_TIMEOUT =
+          SystemProperties.getInteger(PREFIX + ".connectionRequestTimeout", 60);
+
+  /**
+   * Number of I/O threads of the non-blocking client
+   */
+  private static final int IO_THREADS =
+          SystemProperties.getInteger(PREFIX + ".ioThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  /**
+   * Context attribute holding the {@link Token} to send
+   */
+  private static final String TOKEN = PREFIX + ".token";
+
+  private static final CloseableHttpClient CLIENT = create();
+
+  /**
+   * Authentication schemes learned from the challenges of the hosts, by credentials
+   */
+  private static final Cache<String, AuthCache> AUTH_CACHES = Caffeine.newBuilder()
+          .expireAfterAccess(1, TimeUnit.HOURS)
+          .maximumSize(1_000)
+          .build();
+
+  private LibraryHttpClient() {
+  }
+
+  static CloseableHttpClient get() {
+    return CLIENT;
+  }
+
+  /**
+   * @return The non-blocking client, started on first use
+   */
+  static CloseableHttpAsyncClient getAsync() {
+    return AsyncHolder.CLIENT;
+  }
+
+  /**
+   * @return The authentication schemes used by the hosts with the given credentials, so far
+   */
+  @NonNull
+  static AuthCache getAuthCache(@NonNull String username, @NonNull String password) {
+    return AUTH_CACHES.get(DigestUtils.sha256Hex(username + '\n' + password), key -> new BasicAuthCache());
+  }
+
+  /**
+   * Sends a token header along with the requests executed in the given context, as long as they are sent to the host
+   * of the given URL.
+   *
+   * @param context The context of the requests
+   * @param url     The URL of the repository the token is meant for
+   * @param header  Name of the header
+   * @param value   Value of the header
+   */
+  static void setToken(@NonNull HttpClientContext context, @NonNull URL url, @NonNull String header,
+                       @NonNull String value) {
+    context.setAttribute(TOKEN, new Token(new HttpHost(url.getHost(), url.getPort(), url.getProtocol()), header,
+            value));
+  }
+
+  /**
+   * Adds the token header of the context, if any, to a request sent to the host of the token
+   */
+  private static void addToken(HttpRequest request, HttpContext context) {
+    Object token = context.getAttribute(TOKEN);
+    if (!(token instanceof Token)) {
+      return;
+    }
+    HttpClientContext clientContext = HttpClientContext.adapt(context);
+    HttpHost target = clientContext.getTargetHost();
+    RouteInfo route = clientContext.getHttpRoute();
+    if (target == null && route != null) {
+      target = route.getTargetHost();
+    }
+    if (target != null && ((Token) token).isFor(target)) {
+      request.setHeader(((Token) token).header, ((Token) token).value);
+    }
+  }
+
+  private static CloseableHttpClient create() {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(MAX_CONNECTIONS);
+    connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_HOST);
+    return HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(createRequestConfig())
+            .addInterceptorLast((HttpRequestInterceptor) LibraryHttpClient::addToken)
+            .evictExpiredConnections()
+            .evictIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS)
+            .build();
+  }
+
+  private static RequestConfig createRequestConfig() {
+    return RequestConfig.custom()
+            .setConnectTimeout((int) TimeUnit.SECONDS.toMillis(CONNECT_TIMEOUT))
+            .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(SOCKET_TIMEOUT))
+            .setConnectionRequestTimeout((int) TimeUnit.SECONDS.toMillis(CONNECTION_REQUEST_TIMEOUT))
+            .build();
+  }
+
+  /**
+   * A token header, and the host it is meant for
+   */
+  private static final class Token {
+    private final HttpHost host;
+    private final String header;
+    private final String value;
+
+    Token(HttpHost host, String header, String value) {
+      this.host = host;
+      this.header = header;
+      this.value = value;
+    }
+
+    /**
+     * @return Whether the token can be sent to the given host, i.e. the same scheme, host name and port
+     */
+    boolean isFor(HttpHost target) {
+      return host.getSchemeName().equalsIgnoreCase(target.getSchemeName())
+              && host.getHostName().toLowerCase(Locale.ROOT).equals(target.getHostName().toLowerCase(Locale.ROOT))
+              && portOf(host) == portOf(target);
+    }
+
+    private static int portOf(HttpHost host) {
+      if (host.getPort() >= 0) {
+        return host.getPort();
+      }
+      return "https".equalsIgnoreCase(host.getSchemeName()) ? 443 : 80;
+    }
+  }
+
+  private static final class AsyncHolder {
+    private static final CloseableHttpAsyncClient CLIENT = createAsync();
+
+    private static CloseableHttpAsyncClient createAsync() {
+      CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+              .setDefaultIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(IO_THREADS).build())
+              .setThreadFactory(new NamingThreadFactory(new DaemonThreadFactory(), "HTTP shared libraries I/O"))
+              .setMaxConnPerRoute(MAX_CONNECTIONS_PER_HOST)
+              .setMaxConnTotal(MAX_CONNECTIONS)
+              .setDefaultRequestConfig(createRequestConfig())
+              .addInterceptorLast((HttpRequestInterceptor) LibraryHttpClient::addToken)
+              .build();
+      client.start();
+      return client;
+    }
+  }
+}
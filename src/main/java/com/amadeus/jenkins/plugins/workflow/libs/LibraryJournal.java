@@ -0,0 +1,298 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index of the {@link LibraryCache}, so that the controller starts without reading the metadata of every
+ * cached archive.
+ * <p>
+ * The index is an append-only log: each change of an entry appends one line, written with a single call, and ending
+ * with the CRC-32 of its content. When loading, the log is replayed up to its first incomplete or corrupted line,
+ * e.g. the last one written before a crash. Once the log holds many more lines than entries, it is compacted: the
+ * entries are written to a new log, which atomically replaces the previous one.
+ * <p>
+ * The times the entries were last used by a build are also kept, with a resolution of a minute.
+ */
+@Restricted(NoExternalUse.class)
+final class LibraryJournal {
+
+  private static final Logger LOGGER = Logger.getLogger(LibraryJournal.class.getName());
+
+  private static final String HEADER = "http-shared-libraries-index 1";
+  private static final String PUT = "P";
+  private static final String REMOVE = "R";
+  private static final String ACCESS = "A";
+  private static final String NULL = "\\0";
+
+  /**
+   * Minimum number of lines of the log before it is compacted, whatever the number of entries
+   */
+  private static final int MIN_COMPACTION_LINES = 1000;
+
+  /**
+   * Uses of an entry closer than this to the last recorded one are not recorded
+   */
+  private static final long ACCESS_RESOLUTION = TimeUnit.MINUTES.toMillis(1);
+
+  private final File file;
+  private final Map<String, LibraryCache.Entry> entries = new HashMap<>();
+  private final Map<String, Long> accesses = new HashMap<>();
+  private FileChannel channel;
+  private int lines;
+
+  LibraryJournal(@NonNull File file) {
+    this.file = file;
+  }
+
+  /**
+   * @return Whether the log exists, i.e. the index was already built
+   */
+  boolean exists() {
+    return file.isFile();
+  }
+
+  /**
+   * Replays the log, and compacts it if its end is corrupted, so that the next lines are appended after valid ones.
+   *
+   * @return The entries of the index, by key
+   * @throws IOException if the log cannot be read
+   */
+  synchronized Map<String, LibraryCache.Entry> load() throws IOException {
+    entries.clear();
+    accesses.clear();
+    lines = 0;
+    boolean corrupted = false;
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      if (!HEADER.equals(reader.readLine())) {
+        throw new IOException("Not a cache index: " + file);
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!replay(line)) {
+          LOGGER.log(Level.WARNING, "Ignoring the end of the cache index {0} from line {1}, that is corrupted",
+                  new Object[]{file, lines + 2});
+          corrupted = true;
+          break;
+        }
+        lines++;
+      }
+    } catch (NoSuchFileException e) {
+      corrupted = true;
+    }
+    if (corrupted) {
+      compact();
+    }
+    return Collections.unmodifiableMap(new HashMap<>(entries));
+  }
+
+  /**
+   * @return When each entry was last used by a build, by key
+   */
+  synchronized Map<String, Long> getAccesses() {
+    return Collections.unmodifiableMap(new HashMap<>(accesses));
+  }
+
+  /**
+   * Replaces the index with the given entries, e.g. read from the metadata files of a previous version
+   *
+   * @throws IOException if the index cannot be written
+   */
+  synchronized void reset(@NonNull Map<String, LibraryCache.Entry> initial) throws IOException {
+    entries.clear();
+    entries.putAll(initial);
+    accesses.clear();
+    compact();
+  }
+
+  synchronized void put(@NonNull LibraryCache.Entry entry) throws IOException {
+    entries.put(entry.getKey(), entry);
+    append(PUT, entry.getKey(), entry.getUrl(), entry.getLibrary(), entry.getVersion(), entry.getETag(),
+            entry.getLastModified(), Long.toString(entry.getSize()), Long.toString(entry.getFetched()),
+            entry.getDigest());
+  }
+
+  synchronized void remove(@NonNull String key) throws IOException {
+    accesses.remove(key);
+    if (entries.remove(key) != null) {
+      append(REMOVE, key);
+    }
+  }
+
+  /**
+   * Records that a build used an entry, unless it was already recorded less than a minute ago
+   */
+  synchronized void access(@NonNull String key, long time) throws IOException {
+    Long previous = accesses.get(key);
+    if (entries.containsKey(key) && (previous == null || time - previous >= ACCESS_RESOLUTION)) {
+      accesses.put(key, time);
+      append(ACCESS, key, Long.toString(time));
+    }
+  }
+
+  /**
+   * Closes the log, that is opened again by the next change
+   */
+  synchronized void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /**
+   * @return Whether the line is valid
+   */
+  private boolean replay(String line) {
+    int separator = line.lastIndexOf('\t');
+    if (separator < 0 || !line.substring(separator + 1).equals(checksum(line.substring(0, separator)))) {
+      return false;
+    }
+    String[] fields = line.substring(0, separator).split("\t", -1);
+    try {
+      if (PUT.equals(fields[0]) && fields.length == 10) {
+        String key = unescape(fields[1]);
+        entries.put(key, new LibraryCache.Entry(key, unescape(fields[2]), unescape(fields[3]), unescape(fields[4]),
+                unescape(fields[5]), unescape(fields[6]), Long.parseLong(fields[7]), Long.parseLong(fields[8]),
+                unescape(fields[9])));
+      } else if (REMOVE.equals(fields[0]) && fields.length == 2) {
+        entries.remove(unescape(fields[1]));
+        accesses.remove(unescape(fields[1]));
+      } else if (ACCESS.equals(fields[0]) && fields.length == 3) {
+        accesses.put(unescape(fields[1]), Long.parseLong(fields[2]));
+      } else {
+        return false;
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    return true;
+  }
+
+  private void append(String... fields) throws IOException {
+    if (channel == null && !exists()) {
+      // Deleted behind our back: the new log holds the change already
+      compact();
+      return;
+    }
+    if (channel == null) {
+      Files.createDirectories(file.getParentFile().toPath());
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(format(fields).getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    if (++lines > Math.max(MIN_COMPACTION_LINES, 2 * (entries.size() + accesses.size()))) {
+      compact();
+    }
+  }
+
+  /**
+   * Writes the current entries to a new log, that replaces the current one
+   */
+  private void compact() throws IOException {
+    close();
+    Files.createDirectories(file.getParentFile().toPath());
+    File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    StringBuilder content = new StringBuilder(HEADER).append('\n');
+    for (LibraryCache.Entry entry : entries.values()) {
+      content.append(format(PUT, entry.getKey(), entry.getUrl(), entry.getLibrary(), entry.getVersion(),
+              entry.getETag(), entry.getLastModified(), Long.toString(entry.getSize()),
+              Long.toString(entry.getFetched()), entry.getDigest()));
+    }
+    for (Map.Entry<String, Long> access : accesses.entrySet()) {
+      content.append(format(ACCESS, access.getKey(), Long.toString(access.getValue())));
+    }
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+      // The new log must be complete on disk before it replaces the previous one
+      out.getChannel().force(true);
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    lines = entries.size() + accesses.size();
+  }
+
+  private static String format(String... fields) {
+    StringBuilder payload = new StringBuilder();
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        payload.append('\t');
+      }
+      payload.append(i == 0 ? fields[i] : escape(fields[i]));
+    }
+    return payload + "\t" + checksum(payload.toString()) + '\n';
+  }
+
+  private static String checksum(String payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload.getBytes(StandardCharsets.UTF_8));
+    return Long.toHexString(crc.getValue());
+  }
+
+  private static String escape(@CheckForNull String value) {
+    if (value == null) {
+      return NULL;
+    }
+    StringBuilder escaped = new StringBuilder(value.length());
+    for (char c : value.toCharArray()) {
+      switch (c) {
+        case '\\':
+          escaped.append("\\\\");
+          break;
+        case '\t':
+          escaped.append("\\t");
+          break;
+        case '\n':
+          escaped.append("\\n");
+          break;
+        case '\r':
+          escaped.append("\\r");
+          break;
+        default:
+          escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+
+  @CheckForNull
+  private static String unescape(String field) {
+    if (NULL.equals(field)) {
+      return null;
+    }
+    StringBuilder value = new StringBuilder(field.length());
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c == '\\' && i + 1 < field.length()) {
+        char next = field.charAt(++i);
+        value.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      } else {
+        value.append(c);
+      }
+    }
+    return value.toString();
+  }
+}
@@ -0,0 +1,247 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.libs.FolderLibraries;
+import org.jenkinsci.plugins.workflow.libs.GlobalLibraries;
+import org.jenkinsci.plugins.workflow.libs.LibraryConfiguration;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Warms up the {@link LibraryCache} with the default version of the libraries retrieved through HTTP, so that the
+ * first builds after a restart or a configuration change find them in the cache.
+ * <p>
+ * Runs at startup and whenever the global or a folder library configuration is saved, if enabled.
+ * Also runs the other background downloads: revalidations of stale archives and downloads of newly published
+ * versions, on the threads of the host they download from, so that a slow repository does not delay the downloads
+ * from the others. The default versions of a saved library configuration are also validated in the background, so that
+ * the configuration page renders quickly when it is opened again.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class LibraryPrefetcher extends SaveableListener {
+
+  private static final Logger LOGGER = Logger.getLogger(LibraryPrefetcher.class.getName());
+
+  /**
+   * Whether the default versions are prefetched at all
+   */
+  @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "tunable from the script console")
+  public static boolean ENABLED = SystemProperties.getBoolean(LibraryPrefetcher.class.getName() + ".enabled");
+
+  /**
+   * Downloads waiting or running, so that saving a configuration twice does not download the libraries twice, and
+   * whether they succeeded once done
+   */
+  private final Map<String, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+
+  static LibraryPrefetcher get() {
+    return ExtensionList.lookupSingleton(LibraryPrefetcher.class);
+  }
+
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void prefetchAtStartup() {
+    if (ENABLED) {
+      get().prefetchAll();
+    }
+  }
+
+  @Override
+  public void onChange(Saveable o, XmlFile file) {
+    List<LibraryConfiguration> libraries;
+    ItemGroup<?> context;
+    if (o instanceof GlobalLibraries) {
+      libraries = ((GlobalLibraries) o).getLibraries();
+      context = Jenkins.get();
+    } else if (o instanceof AbstractFolder) {
+      FolderLibraries folderLibraries = ((AbstractFolder<?>) o).getProperties().get(FolderLibraries.class);
+      if (folderLibraries == null) {
+        return;
+      }
+      libraries = folderLibraries.getLibraries();
+      context = (AbstractFolder<?>) o;
+    } else {
+      return;
+    }
+    if (!ENABLED) {
+      return;
+    }
+    // With the authentication of the user saving the configuration, so that the page they render when opening it
+    // again finds the validations in the cache
+    LibraryValidator.start(libraries);
+    visit(libraries, context, this::prefetchDefaultVersion);
+  }
+
+  /**
+   * Prefetches the default version of all the global and folder libraries
+   */
+  void prefetchAll() {
+    forEachHttpLibrary(this::prefetchDefaultVersion);
+  }
+
+  /**
+   * Downloads again a version of the libraries with the given name, because it was just published.
+   *
+   * @param name    Name of the library
+   * @param version Version of the library
+   * @return The number of libraries with this name, global or in folders
+   */
+  int prefetchPublished(@NonNull String name, @NonNull String version) {
+    AtomicInteger found = new AtomicInteger();
+    forEachHttpLibrary((library, context) -> {
+      if (library.getName().equals(name)) {
+        found.incrementAndGet();
+        prefetch((HttpRetriever) library.getRetriever(), name, version, context, true);
+      }
+    });
+    return found.get();
+  }
+
+  /**
+   * Visits the global and folder libraries retrieved through HTTP
+   */
+  void forEachHttpLibrary(BiConsumer<LibraryConfiguration, ItemGroup<?>> action) {
+    visit(GlobalLibraries.get().getLibraries(), Jenkins.get(), action);
+    for (AbstractFolder<?> folder : Jenkins.get().getAllItems(AbstractFolder.class)) {
+      FolderLibraries libraries = folder.getProperties().get(FolderLibraries.class);
+      if (libraries != null) {
+        visit(libraries.getLibraries(), folder, action);
+      }
+    }
+  }
+
+  private static void visit(List<LibraryConfiguration> libraries, ItemGroup<?> context,
+                            BiConsumer<LibraryConfiguration, ItemGroup<?>> action) {
+    for (LibraryConfiguration library : libraries) {
+      if (library.getRetriever() instanceof HttpRetriever) {
+        action.accept(library, context);
+      }
+    }
+  }
+
+  private void prefetchDefaultVersion(LibraryConfiguration library, ItemGroup<?> context) {
+    String version = library.getDefaultVersion();
+    if (version != null && !version.isEmpty()) {
+      prefetch((HttpRetriever) library.getRetriever(), library.getName(), version, context, false);
+    }
+  }
+
+  /**
+   * Downloads a library in the background, unless it is already being downloaded.
+   *
+   * @param retriever How to retrieve the library
+   * @param name      Name of the library
+   * @param version   Version of the library
+   * @param context   Where the library is configured
+   * @param force     Whether to download the archive even if the cached copy looks valid
+   */
+  void prefetch(@NonNull HttpRetriever retriever, @NonNull String name, @NonNull String version,
+                @NonNull ItemGroup<?> context, boolean force) {
+    String id = idOf(retriever, name, version, context, force);
+    submit(id, retriever.getHttpURL(), "library " + name + "@" + version, () -> {
+      retriever.prefetch(name, version, context, force);
+      return null;
+    });
+  }
+
+  /**
+   * Waits for the prefetch of a library, if waiting or running, so that a build uses the archive it downloads rather
+   * than sending another request. Does not wait for a forced download.
+   *
+   * @param retriever How to retrieve the library
+   * @param name      Name of the library
+   * @param version   Version of the library
+   * @param context   Where the credentials are looked up
+   * @return Whether a prefetch was waited for and succeeded
+   * @throws InterruptedException if interrupted while waiting
+   */
+  boolean await(@NonNull HttpRetriever retriever, @NonNull String name, @NonNull String version,
+                @NonNull ItemGroup<?> context) throws InterruptedException {
+    CompletableFuture<Boolean> prefetch = pending.get(idOf(retriever, name, version, context, false));
+    if (prefetch == null) {
+      return false;
+    }
+    try {
+      return prefetch.get();
+    } catch (ExecutionException e) {
+      // Never completed exceptionally
+      return false;
+    }
+  }
+
+  private static String idOf(HttpRetriever retriever, String name, String version, ItemGroup<?> context,
+                             boolean force) {
+    // The same credentials ID can resolve to other credentials in another folder
+    return retriever.getHttpURL() + '\n' + retriever.getCredentialsId() + '\n' + context.getFullName() + '\n'
+            + name + '@' + version + (force ? "\nforce" : "");
+  }
+
+  /**
+   * Runs a download in the background, on the threads of the host it downloads from, unless the same download is
+   * already waiting or running.
+   *
+   * @param id          Identifies the download
+   * @param url         URL, or URL template, of what is downloaded
+   * @param description What is downloaded, for the logs
+   * @param task        The download
+   */
+  void submit(@NonNull String id, @NonNull String url, @NonNull String description, @NonNull Callable<?> task) {
+    URL target;
+    try {
+      target = new URL(url);
+    } catch (MalformedURLException e) {
+      LOGGER.log(Level.WARNING, "Cannot prefetch " + description, e);
+      return;
+    }
+    CompletableFuture<Boolean> done = new CompletableFuture<>();
+    if (pending.putIfAbsent(id, done) != null) {
+      return;
+    }
+    try {
+      LibraryBulkhead.of(target).execute(() -> {
+        boolean succeeded = false;
+        try {
+          task.call();
+          succeeded = true;
+          LOGGER.log(Level.FINE, "Prefetched {0}", description);
+        } catch (Exception e) {
+          LOGGER.log(Level.WARNING, "Failed to prefetch " + description, e);
+        } finally {
+          pending.remove(id);
+          done.complete(succeeded);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pending.remove(id);
+      done.complete(false);
+      LOGGER.log(Level.WARNING, "Too many background downloads queued for {0}, skipping {1}",
+              new Object[]{LibraryBulkhead.hostOf(target), description});
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.RootAction;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.security.Permission;
+import hudson.security.PermissionScope;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Endpoint to notify that a version of a library was published, so that it is downloaded in the cache before
+ * the first build needs it. If the version is already cached, e.g. because it is a branch-style version that was
+ * overwritten, it is downloaded again.
+ * <p>
+ * Meant to be called by the CI publishing the library, authenticated with an API token, which does not need a crumb:
+ * <pre>
+ * curl -X POST -u user:token "$JENKINS_URL/http-shared-libraries/notify?library=NAME&amp;version=VERSION"
+ * </pre>
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class LibraryPublishedAction implements RootAction {
+
+  /**
+   * Allows to notify published libraries without being administrator
+   */
+  public static final Permission NOTIFY = new Permission(Jenkins.PERMISSIONS, "NotifyHttpLibraryPublished",
+          null, Jenkins.ADMINISTER, PermissionScope.JENKINS);
+
+  @Initializer(before = InitMilestone.SYSTEM_CONFIG_LOADED)
+  public static void registerPermissions() {
+    // Loading this class is enough to register the permission before the authorization strategy is loaded
+  }
+
+  @Override
+  public String getIconFileName() {
+    return null;
+  }
+
+  @Override
+  public String getDisplayName() {
+    return null;
+  }
+
+  @Override
+  public String getUrlName() {
+    return "http-shared-libraries";
+  }
+
+  /**
+   * Downloads in the background the given version of all the HTTP libraries with the given name.
+   *
+   * @param library Name of the library
+   * @param version Published version
+   * @return 202 if at least a library has this name, 404 otherwise
+   */
+  @RequirePOST
+  public HttpResponse doNotify(@QueryParameter(required = true) String library,
+                               @QueryParameter(required = true) String version) {
+    Jenkins.get().checkPermission(NOTIFY);
+    int found;
+    try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+      found = LibraryPrefetcher.get().prefetchPublished(library, version);
+    }
+    if (found == 0) {
+      return HttpResponses.errorWithoutStack(HttpURLConnection.HTTP_NOT_FOUND, "No HTTP library named " + library);
+    }
+    return HttpResponses.status(HttpURLConnection.HTTP_ACCEPTED);
+  }
+}
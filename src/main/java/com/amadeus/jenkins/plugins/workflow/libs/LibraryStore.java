@@ -0,0 +1,557 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store of the files of the extracted archives.
+ * <p>
+ * Each file is stored once, under the SHA-256 of its content, whatever the number of libraries or versions it belongs
+ * to. An extracted archive is a {@link Manifest} listing its directories and the hash of each of its files, so that a
+ * new version sharing most of its files with the previous one only adds the changed files to the store. Builds get
+ * writable copies of the stored files, or hard links to them if enabled, see {@link LibraryTree}.
+ * <p>
+ * A library may also be published as separate files along with the list of their hashes, in which case only the files
+ * missing from the store are downloaded.
+ * <p>
+ * A fingerprint is written next to each directory where a library is materialized, so that a later retrieval of the
+ * same library in the same directory, e.g. when a build resumes, can be skipped after checking the local files only.
+ * The fingerprint also records the size and modification time of each file, so that only the files changed since then
+ * are hashed again.
+ * <p>
+ * Stored files are read-only, as they may be linked from many builds. Files are added under a name that depends on
+ * their content, so adding them needs no locking, even when the store is shared by several controllers. The files of
+ * the archives no longer in the cache are pruned, see {@link #prune(Set)}.
+ */
+@Restricted(NoExternalUse.class)
+final class LibraryStore {
+
+  private static final Logger LOGGER = Logger.getLogger(LibraryStore.class.getName());
+
+  private static final String STORE_DIR = "store";
+  private static final String OBJECTS_DIR = "objects";
+  private static final String MANIFESTS_DIR = "manifests";
+  private static final String FINGERPRINT_EXTENSION = ".fingerprint";
+  private static final String SOURCE_PROPERTY = "source";
+  private static final String MANIFEST_PROPERTY = "manifest";
+  private static final String FILE_PROPERTY_PREFIX = "file.";
+  private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+  /**
+   * A line of the output of {@code sha256sum}, in text or binary mode, e.g. {@code <hash>  ./src/Foo.groovy}
+   */
+  private static final Pattern SUMS_LINE = Pattern.compile("([0-9a-fA-F]{64}) [ *](?:\\./)?(.+)");
+
+  private final LibraryCache cache;
+
+  /**
+   * Held while adding or materializing manifests, so that their files are not pruned meanwhile
+   */
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  LibraryStore(@NonNull LibraryCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Gets the manifest of an archive, extracting the archive in the store if it was never extracted with this filter.
+   *
+   * @param archive The archive, opened for reading
+   * @param filter  The entries to extract
+   * @return The manifest of the extracted archive
+   * @throws IOException if the archive cannot be extracted
+   */
+  @NonNull
+  Manifest add(@NonNull LibraryCache.Handle archive, @NonNull LibraryArchive.Filter filter) throws IOException {
+    String digest = digestOf(archive);
+    File manifestFile = manifestOf(digest, filter);
+    lock.readLock().lock();
+    try {
+      if (manifestFile.isFile()) {
+        Manifest manifest = readManifest(manifestFile);
+        if (manifest.isComplete()) {
+          return manifest;
+        }
+      }
+      File tmp = cache.createTempDirectory();
+      try {
+        LibraryArchive.extract(archive.getArchive(), tmp, filter);
+        Manifest manifest = ingest(manifestFile.getName(), digest, tmp.toPath());
+        manifest.write(manifestFile, cache.createTempFile());
+        return manifest;
+      } finally {
+        Util.deleteRecursive(tmp);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the manifest of a library published as separate files, only downloading the files missing from the store.
+   * The files are listed with their SHA-256 in the {@code sha256sum} format, e.g. {@code <hash>  src/Foo.groovy}.
+   *
+   * @param sums       The list of files, opened for reading
+   * @param filter     The files to use
+   * @param downloader Downloads the missing files
+   * @return The manifest of the library
+   * @throws IOException if the list is invalid, or a file cannot be downloaded or does not match its hash
+   * @throws InterruptedException if interrupted while downloading
+   */
+  @NonNull
+  Manifest add(@NonNull LibraryCache.Handle sums, @NonNull LibraryArchive.Filter filter,
+               @NonNull Downloader downloader) throws IOException, InterruptedException {
+    String digest = digestOf(sums);
+    File manifestFile = manifestOf(digest, filter);
+    lock.readLock().lock();
+    try {
+      return addFiles(sums, filter, downloader, digest, manifestFile);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private Manifest addFiles(LibraryCache.Handle sums, LibraryArchive.Filter filter, Downloader downloader,
+                            String digest, File manifestFile) throws IOException, InterruptedException {
+    if (manifestFile.isFile()) {
+      Manifest manifest = readManifest(manifestFile);
+      if (manifest.isComplete()) {
+        return manifest;
+      }
+    }
+    Set<String> directories = new LinkedHashSet<>();
+    Map<String, String> files = new LinkedHashMap<>();
+    for (Map.Entry<String, String> file : readSums(sums.getArchive()).entrySet()) {
+      String name = file.getKey();
+      if (filter.accepts(name)) {
+        for (int slash = name.indexOf('/'); slash > 0; slash = name.indexOf('/', slash + 1)) {
+          directories.add(name.substring(0, slash));
+        }
+        files.put(name, file.getValue());
+      }
+    }
+    LibraryArchive.Limits.DEFAULT.checkEntries(files.size());
+    File tmp = cache.createTempDirectory();
+    try {
+      // Files with the same content are downloaded once
+      Map<String, File> downloads = new LinkedHashMap<>();
+      Set<String> missing = new HashSet<>();
+      for (Map.Entry<String, String> file : files.entrySet()) {
+        String hash = file.getValue();
+        if (!Files.isRegularFile(objectOf(hash)) && missing.add(hash)) {
+          downloads.put(file.getKey(), new File(tmp, hash));
+        }
+      }
+      if (!downloads.isEmpty()) {
+        downloader.download(downloads);
+      }
+      long size = 0;
+      for (Map.Entry<String, File> download : downloads.entrySet()) {
+        size += download.getValue().length();
+        LibraryArchive.Limits.DEFAULT.checkSize(size);
+        String hash = files.get(download.getKey());
+        if (!hash.equals(digestOf(download.getValue().toPath()))) {
+          throw new IOException("The downloaded file " + download.getKey() + " does not match its SHA-256");
+        }
+        store(download.getValue().toPath(), hash);
+      }
+    } finally {
+      Util.deleteRecursive(tmp);
+    }
+    Manifest manifest = new Manifest(manifestFile.getName(), digest, new ArrayList<>(directories), files);
+    manifest.write(manifestFile, cache.createTempFile());
+    return manifest;
+  }
+
+  /**
+   * @return The SHA-256 of each file, by path relative to the root of the library
+   */
+  private static Map<String, String> readSums(File file) throws IOException {
+    Map<String, String> files = new LinkedHashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        Matcher matcher = SUMS_LINE.matcher(line);
+        if (!matcher.matches()) {
+          throw new IOException("Invalid line in the list of files: " + line);
+        }
+        String name = matcher.group(2);
+        if (name.contains("..")) {
+          throw new IOException("Unsupported list of files that contains relative paths to parent that could cause a security breach");
+        }
+        LibraryArchive.checkName(name);
+        files.put(name, matcher.group(1).toLowerCase(Locale.ENGLISH));
+      }
+    }
+    return files;
+  }
+
+  /**
+   * @return The SHA-256 of an archive or a list of files
+   */
+  private static String digestOf(LibraryCache.Handle handle) throws IOException {
+    String digest = handle.getEntry().getDigest();
+    return digest != null ? digest : digestOf(handle.getArchive().toPath());
+  }
+
+  /**
+   * @param digest The SHA-256 of an archive or a list of files
+   * @return The file of its manifest, extracted with the given filter
+   */
+  private File manifestOf(String digest, LibraryArchive.Filter filter) {
+    return new File(getRoot(), MANIFESTS_DIR + '/' + DigestUtils.sha256Hex(digest + '\n' + filter));
+  }
+
+  private static String digestOf(Path file) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      return DigestUtils.sha256Hex(in);
+    }
+  }
+
+  /**
+   * Moves a file into the store, unless it is already there
+   */
+  private void store(Path file, String hash) throws IOException {
+    Path object = objectOf(hash);
+    if (!Files.exists(object)) {
+      Files.createDirectories(object.getParent());
+      try {
+        Files.move(file, object, StandardCopyOption.ATOMIC_MOVE);
+        object.toFile().setReadOnly();
+      } catch (FileAlreadyExistsException e) {
+        // Stored concurrently
+      }
+    }
+  }
+
+  /**
+   * Moves the files of an extracted archive into the store
+   */
+  private Manifest ingest(String id, String digest, Path dir) throws IOException {
+    List<String> directories = new ArrayList<>();
+    Map<String, String> files = new LinkedHashMap<>();
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        String name = dir.relativize(path).toString().replace(File.separatorChar, '/');
+        if (name.isEmpty()) {
+          continue;
+        }
+        if (Files.isDirectory(path)) {
+          directories.add(name);
+          continue;
+        }
+        String hash = digestOf(path);
+        store(path, hash);
+        files.put(name, hash);
+      }
+    }
+    return new Manifest(id, digest, directories, files);
+  }
+
+  /**
+   * Deletes the manifests of the archives that are no longer in the cache, then the files that no manifest lists.
+   * Skipped if an archive is being added or materialized, as it will be done the next time.
+   *
+   * @param digests The SHA-256 of the archives and lists of files in the cache
+   * @return The number of files deleted
+   * @throws IOException if the store cannot be read
+   */
+  int prune(@NonNull Set<String> digests) throws IOException {
+    if (!lock.writeLock().tryLock()) {
+      return 0;
+    }
+    try {
+      Set<String> used = new HashSet<>();
+      int deleted = 0;
+      File[] manifests = new File(getRoot(), MANIFESTS_DIR).listFiles();
+      for (File file : manifests == null ? new File[0] : manifests) {
+        Manifest manifest;
+        try {
+          manifest = readManifest(file);
+        } catch (IOException e) {
+          manifest = null;
+        }
+        if (manifest != null && manifest.archive != null && digests.contains(manifest.archive)) {
+          used.addAll(manifest.files.values());
+        } else {
+          // Built again from the archive if it is used again
+          Files.deleteIfExists(file.toPath());
+          deleted++;
+        }
+      }
+      Path objects = new File(getRoot(), OBJECTS_DIR).toPath();
+      if (Files.isDirectory(objects)) {
+        try (Stream<Path> paths = Files.walk(objects)) {
+          for (Path path : (Iterable<Path>) paths::iterator) {
+            if (Files.isRegularFile(path) && !used.contains(path.getFileName().toString())) {
+              path.toFile().setWritable(true);
+              Files.deleteIfExists(path);
+              deleted++;
+            }
+          }
+        }
+      }
+      return deleted;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Tells whether a directory already holds a library, so that it does not need to be retrieved again, e.g. when a
+   * build resumes after a restart. Only the local files are checked against the fingerprint recorded next to the
+   * directory when the library was materialized: a file whose size and modification time did not change since then is
+   * trusted, the others are hashed and compared with the manifest, so that a file changed or replaced is noticed.
+   *
+   * @param target Where the library is expected
+   * @param source Identifies where the library comes from: URL, credentials, filter...
+   * @return Whether the directory holds the files of the last library materialized there, from the same source
+   */
+  boolean isMaterialized(@NonNull Path target, @NonNull String source) {
+    Path fingerprint = fingerprintOf(target);
+    if (!Files.isRegularFile(fingerprint)) {
+      return false;
+    }
+    try {
+      Properties properties = new Properties();
+      try (InputStream in = Files.newInputStream(fingerprint)) {
+        properties.load(in);
+      }
+      String id = properties.getProperty(MANIFEST_PROPERTY);
+      if (!source.equals(properties.getProperty(SOURCE_PROPERTY)) || id == null || !SHA256.matcher(id).matches()) {
+        return false;
+      }
+      File manifestFile = new File(getRoot(), MANIFESTS_DIR + '/' + id);
+      return manifestFile.isFile() && readManifest(manifestFile).isMaterializedIn(target, properties);
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Cannot check the fingerprint " + fingerprint, e);
+      return false;
+    }
+  }
+
+  private static Path fingerprintOf(Path target) {
+    return target.resolveSibling(target.getFileName() + FINGERPRINT_EXTENSION);
+  }
+
+  /**
+   * @return The size and modification time of a file, as recorded in the fingerprint
+   */
+  private static String statOf(Path file) throws IOException {
+    return Files.size(file) + " " + Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS);
+  }
+
+  private File getRoot() {
+    return new File(cache.getRoot(), STORE_DIR);
+  }
+
+  private Path objectOf(String hash) {
+    return new File(getRoot(), OBJECTS_DIR + '/' + hash.substring(0, 2) + '/' + hash).toPath();
+  }
+
+  /**
+   * The content of an extracted archive: its directories, and the hash of each of its files, by path relative to the
+   * root of the library
+   */
+  final class Manifest {
+    private final String id;
+    private final String archive;
+    private final List<String> directories;
+    private final Map<String, String> files;
+
+    /**
+     * @param archive The SHA-256 of the archive or list of files, null if written by a previous version
+     */
+    private Manifest(String id, @CheckForNull String archive, List<String> directories, Map<String, String> files) {
+      this.id = id;
+      this.archive = archive;
+      this.directories = directories;
+      this.files = files;
+    }
+
+    /**
+     * @return Whether all the files are still in the store
+     */
+    boolean isComplete() {
+      for (String hash : files.values()) {
+        if (!Files.isRegularFile(objectOf(hash))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @param fingerprint The fingerprint recorded when the library was materialized in the directory
+     * @return Whether a directory holds all the files, with their content
+     */
+    private boolean isMaterializedIn(Path target, Properties fingerprint) throws IOException {
+      for (String directory : directories) {
+        if (!Files.isDirectory(LibraryArchive.resolve(target, directory))) {
+          return false;
+        }
+      }
+      for (Map.Entry<String, String> file : files.entrySet()) {
+        Path path = LibraryArchive.resolve(target, file.getKey());
+        if (!Files.isRegularFile(path)) {
+          return false;
+        }
+        if (!statOf(path).equals(fingerprint.getProperty(FILE_PROPERTY_PREFIX + file.getKey()))
+            && !file.getValue().equals(digestOf(path))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Writes the extracted archive into a directory, copying the stored files, or linking them if enabled, see
+     * {@link LibraryTree}, then records its fingerprint next to the directory. Copies are written from memory instead
+     * when the library is kept there, see {@link LibraryTreeCache}.
+     *
+     * @param target Where the library is expected
+     * @param source Identifies where the library comes from, see {@link #isMaterialized(Path, String)}
+     * @throws IOException if a file cannot be linked nor copied
+     */
+    void materialize(@NonNull Path target, @NonNull String source) throws IOException {
+      // The files of the manifest are not pruned meanwhile, even if its archive was just purged
+      lock.readLock().lock();
+      try {
+        copyTo(target, source);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    private void copyTo(Path target, String source) throws IOException {
+      Path fingerprint = fingerprintOf(target);
+      Files.deleteIfExists(fingerprint);
+      Files.createDirectories(target);
+      for (String directory : directories) {
+        Files.createDirectories(LibraryArchive.resolve(target, directory));
+      }
+      LibraryTreeCache trees = cache.getTrees();
+      // Linking the stored files costs less than writing them from memory
+      boolean linking = LibraryTree.isLinking();
+      if (linking || !trees.copyTo(id, target)) {
+        Map<Path, Path> links = new LinkedHashMap<>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+          links.put(objectOf(file.getValue()), LibraryArchive.resolve(target, file.getKey()));
+        }
+        LibraryTree.copy(links);
+        if (!linking) {
+          trees.add(id, target, files.keySet());
+        }
+      }
+      Properties properties = new Properties();
+      properties.setProperty(SOURCE_PROPERTY, source);
+      properties.setProperty(MANIFEST_PROPERTY, id);
+      for (Map.Entry<String, String> file : files.entrySet()) {
+        properties.setProperty(FILE_PROPERTY_PREFIX + file.getKey(),
+            statOf(LibraryArchive.resolve(target, file.getKey())));
+      }
+      try (OutputStream out = Files.newOutputStream(fingerprint)) {
+        properties.store(out, null);
+      }
+    }
+
+    private void write(File file, File tmp) throws IOException {
+      try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+        if (archive != null) {
+          writer.write("A " + archive);
+          writer.newLine();
+        }
+        for (String directory : directories) {
+          writer.write("D " + directory);
+          writer.newLine();
+        }
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+          writer.write("F " + entry.getValue() + ' ' + entry.getKey());
+          writer.newLine();
+        }
+      }
+      Files.createDirectories(file.getParentFile().toPath());
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  /**
+   * Downloads the files of a library published as separate files
+   */
+  @FunctionalInterface
+  interface Downloader {
+    /**
+     * @param files Where to download each file, by path relative to the root of the library
+     * @throws IOException if a file cannot be downloaded
+     * @throws InterruptedException if interrupted while downloading
+     */
+    void download(@NonNull Map<String, File> files) throws IOException, InterruptedException;
+  }
+
+  /**
+   * @return The name of a file or directory of a manifest, if it stays in the directory of the library
+   */
+  private static String checkName(String name, File manifest) throws IOException {
+    try {
+      LibraryArchive.checkName(name);
+    } catch (IOException e) {
+      throw new IOException("Corrupted manifest " + manifest, e);
+    }
+    return name;
+  }
+
+  private Manifest readManifest(File file) throws IOException {
+    String archive = null;
+    List<String> directories = new ArrayList<>();
+    Map<String, String> files = new LinkedHashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        if (line.startsWith("A ") && SHA256.matcher(line.substring(2)).matches()) {
+          archive = line.substring(2);
+        } else if (line.startsWith("D ")) {
+          directories.add(checkName(line.substring(2), file));
+        } else if (line.startsWith("F ") && line.indexOf(' ', 2) > 0
+                && SHA256.matcher(line.substring(2, line.indexOf(' ', 2))).matches()) {
+          int space = line.indexOf(' ', 2);
+          files.put(checkName(line.substring(space + 1), file), line.substring(2, space));
+        } else {
+          throw new IOException("Corrupted manifest " + file);
+        }
+      }
+    }
+    return new Manifest(file.getName(), archive, directories, files);
+  }
+}
@@ -0,0 +1,143 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Puts the files of an extracted library into the directory of a build.
+ * <p>
+ * Files are copied in parallel by a bounded fork-join pool shared by all the builds, large files being transferred
+ * channel to channel so that the kernel can copy them without going through the Java heap. The copies are writable,
+ * whatever the permissions of the source, so that a build may change its own copy of a library.
+ * <p>
+ * Files can instead be hard-linked, where the file system supports it, to save the copies. The files of the builds are
+ * then the read-only files of the {@link LibraryStore}, shared by all the builds: anything writing into the libraries
+ * of a build fails, or, run as root, changes the library of every build.
+ */
+@Restricted(NoExternalUse.class)
+final class LibraryTree {
+
+  /**
+   * Maximum number of files linked or copied at the same time, all builds included
+   */
+  private static final int PARALLELISM = Math.max(1, SystemProperties.getInteger(
+          LibraryTree.class.getName() + ".parallelism", Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+  /**
+   * Minimum number of files of a library for its files to be linked or copied in parallel
+   */
+  private static final int PARALLEL_THRESHOLD =
+          SystemProperties.getInteger(LibraryTree.class.getName() + ".parallelThreshold", 64);
+
+  /**
+   * Whether the files are hard-linked instead of copied, where possible
+   */
+  private static final boolean HARD_LINKS = SystemProperties.getBoolean(LibraryTree.class.getName() + ".hardLinks");
+
+  /**
+   * Minimum size, in bytes, of a file to transfer it channel to channel
+   */
+  private static final long LARGE_FILE = 1024 * 1024;
+
+  private static final ForkJoinPool POOL = new ForkJoinPool(PARALLELISM, pool -> {
+    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+    thread.setName("HTTP shared libraries materialization " + thread.getPoolIndex());
+    return thread;
+  }, null, false);
+
+  private LibraryTree() {
+  }
+
+  /**
+   * Copies files to other places, or links them if enabled. The files that already exist in the target are replaced.
+   *
+   * @param files The target of each file, in existing directories
+   * @throws IOException if a file can neither be linked nor copied
+   */
+  static void copy(@NonNull Map<Path, Path> files) throws IOException {
+    copy(files, HARD_LINKS);
+  }
+
+  /**
+   * @return Whether the files are linked rather than copied, where possible
+   */
+  static boolean isLinking() {
+    return HARD_LINKS;
+  }
+
+  /**
+   * @param link Whether to link the files where links are supported, e.g. not across file systems
+   * @see #copy(Map)
+   */
+  static void copy(@NonNull Map<Path, Path> files, boolean link) throws IOException {
+    AtomicBoolean linkable = new AtomicBoolean(link);
+    if (PARALLELISM > 1 && files.size() >= PARALLEL_THRESHOLD) {
+      try {
+        POOL.invoke(ForkJoinTask.adapt(() -> files.entrySet().parallelStream().forEach(file -> {
+          try {
+            linkFile(file.getKey(), file.getValue(), linkable);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        })));
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    } else {
+      for (Map.Entry<Path, Path> file : files.entrySet()) {
+        linkFile(file.getKey(), file.getValue(), linkable);
+      }
+    }
+  }
+
+  private static void linkFile(Path source, Path target, AtomicBoolean linkable) throws IOException {
+    Files.deleteIfExists(target);
+    if (linkable.get()) {
+      try {
+        Files.createLink(target, source);
+        return;
+      } catch (IOException | UnsupportedOperationException e) {
+        // Do not try again for the other files
+        linkable.set(false);
+      }
+    }
+    copyFile(source, target);
+  }
+
+  private static void copyFile(Path source, Path target) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+    if (attributes.size() < LARGE_FILE) {
+      // Not the attributes, as the file would be read-only
+      Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+      target.toFile().setWritable(true);
+      Files.setLastModifiedTime(target, attributes.lastModifiedTime());
+      return;
+    }
+    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+         FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+      long size = in.size();
+      long position = 0;
+      while (position < size) {
+        position += in.transferTo(position, size - position, out);
+      }
+    }
+    Files.setLastModifiedTime(target, attributes.lastModifiedTime());
+  }
+}
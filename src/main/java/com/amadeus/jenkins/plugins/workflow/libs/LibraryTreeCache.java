@@ -0,0 +1,133 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Keeps the files of the most used small libraries in memory, so that a library retrieved again and again is written
+ * to the builds straight from the heap, rather than copied file by file from the {@link LibraryStore}.
+ * <p>
+ * Each library is kept as a zip of its files. The cache is bounded by the total size of the zips, the least recently
+ * and frequently used ones being evicted first, and only holds libraries small enough not to push the others out.
+ * Disabled by default, and not used when the files are hard-linked from the store, see {@link LibraryTree}.
+ */
+@Restricted(NoExternalUse.class)
+final class LibraryTreeCache {
+
+  /**
+   * Maximum total size, in bytes, of the libraries kept in memory. 0 to disable.
+   */
+  private static final long MAX_SIZE = SystemProperties.getLong(LibraryTreeCache.class.getName() + ".maxSize", 0L);
+
+  /**
+   * Maximum size, in bytes, of the files of a library kept in memory
+   */
+  private static final long MAX_ENTRY_SIZE =
+          SystemProperties.getLong(LibraryTreeCache.class.getName() + ".maxEntrySize", 1024L * 1024);
+
+  private final long maxEntrySize;
+
+  /**
+   * Zips of the libraries, by manifest of the {@link LibraryStore}. Null if disabled.
+   */
+  private final Cache<String, byte[]> trees;
+
+  LibraryTreeCache() {
+    this(MAX_SIZE, MAX_ENTRY_SIZE);
+  }
+
+  LibraryTreeCache(long maxSize, long maxEntrySize) {
+    this.maxEntrySize = maxEntrySize;
+    this.trees = maxSize <= 0 ? null : Caffeine.newBuilder()
+            .maximumWeight(maxSize)
+            .weigher((String key, byte[] tree) -> tree.length)
+            .build();
+  }
+
+  /**
+   * Writes a library kept in memory into a directory.
+   *
+   * @param key    Key of the library
+   * @param target Where to write the files of the library
+   * @return Whether the library was in memory
+   * @throws IOException if the files cannot be written
+   */
+  boolean copyTo(@NonNull String key, @NonNull Path target) throws IOException {
+    byte[] tree = trees == null ? null : trees.getIfPresent(key);
+    if (tree == null) {
+      return false;
+    }
+    try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(tree))) {
+      ZipEntry entry;
+      while ((entry = in.getNextEntry()) != null) {
+        Path file = LibraryArchive.resolve(target, entry.getName());
+        Files.createDirectories(file.getParent());
+        Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Keeps a library in memory, unless it is too large.
+   *
+   * @param key   Key of the library
+   * @param dir   The directory of the library
+   * @param files The files of the library, relative to its directory
+   * @return Whether the library is now in memory
+   * @throws IOException if the files cannot be read
+   */
+  boolean add(@NonNull String key, @NonNull Path dir, @NonNull Collection<String> files) throws IOException {
+    if (trees == null) {
+      return false;
+    }
+    long size = 0;
+    for (String file : files) {
+      size += Files.size(LibraryArchive.resolve(dir, file));
+      if (size > maxEntrySize) {
+        return false;
+      }
+    }
+    ByteArrayOutputStream tree = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(tree)) {
+      for (String file : files) {
+        out.putNextEntry(new ZipEntry(file));
+        Files.copy(LibraryArchive.resolve(dir, file), out);
+        out.closeEntry();
+      }
+    }
+    trees.put(key, tree.toByteArray());
+    return true;
+  }
+
+  /**
+   * @return The total size of the libraries in memory, in bytes
+   */
+  long getSize() {
+    return trees == null ? 0 : trees.asMap().values().stream().mapToLong(tree -> tree.length).sum();
+  }
+
+  /**
+   * Evicts the libraries beyond the maximum size right away, rather than asynchronously
+   */
+  void cleanUp() {
+    if (trees != null) {
+      trees.cleanUp();
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.libs.LibraryConfiguration;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.springframework.security.core.Authentication;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates the default versions of many libraries at the same time, e.g. all the libraries of a configuration page,
+ * on a bounded pool shared by all the callers.
+ * <p>
+ * Successful validations are remembered by the {@link LibraryCache}, so that a configuration page listing many
+ * libraries can then be rendered without a round-trip to the server for each of them.
+ */
+@Restricted(NoExternalUse.class)
+final class LibraryValidator {
+
+  /**
+   * Maximum number of versions validated at the same time, all callers included
+   */
+  private static final int PARALLELISM = Math.max(1,
+          SystemProperties.getInteger(LibraryValidator.class.getName() + ".parallelism", 8));
+
+  private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+  /**
+   * Validations waiting or running, by caller and library, so that the fields of a configuration page, validated by
+   * as many requests, share the validations started by the first of them
+   */
+  private static final ConcurrentMap<String, Future<FormValidation>> RUNNING = new ConcurrentHashMap<>();
+
+  private LibraryValidator() {
+  }
+
+  private static ThreadPoolExecutor createExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(PARALLELISM, PARALLELISM, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "HTTP shared libraries validation"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Validates the default version of the given libraries retrieved through HTTP, with the authentication of the
+   * caller. The other libraries, and the libraries without default version, are skipped.
+   *
+   * @param libraries The libraries to validate
+   * @return The validation of each HTTP library with a default version, in the given order
+   * @throws InterruptedException if interrupted while waiting for the validations
+   */
+  @NonNull
+  static Map<LibraryConfiguration, FormValidation> validate(@NonNull List<LibraryConfiguration> libraries)
+          throws InterruptedException {
+    Map<LibraryConfiguration, FormValidation> validations = new LinkedHashMap<>();
+    // Not cancelled if interrupted, as other callers may wait for the same validations
+    for (Map.Entry<LibraryConfiguration, Future<FormValidation>> future : submit(libraries).entrySet()) {
+      try {
+        validations.put(future.getKey(), future.getValue().get());
+      } catch (ExecutionException e) {
+        validations.put(future.getKey(), FormValidation.warning(e.getCause(), "Cannot validate default version."));
+      }
+    }
+    return validations;
+  }
+
+  /**
+   * Starts validating the default version of the given libraries retrieved through HTTP, with the authentication of
+   * the caller, without waiting for the results.
+   *
+   * @param libraries The libraries to validate
+   */
+  static void start(@NonNull List<LibraryConfiguration> libraries) {
+    submit(libraries);
+  }
+
+  private static Map<LibraryConfiguration, Future<FormValidation>> submit(List<LibraryConfiguration> libraries) {
+    Authentication authentication = Jenkins.getAuthentication2();
+    Map<LibraryConfiguration, Future<FormValidation>> futures = new LinkedHashMap<>();
+    for (LibraryConfiguration library : libraries) {
+      String version = library.getDefaultVersion();
+      if (library.getRetriever() instanceof HttpRetriever && version != null && !version.isEmpty()) {
+        HttpRetriever retriever = (HttpRetriever) library.getRetriever();
+        // The credentials, and so the validation, depend on the caller
+        String id = authentication.getName() + '\n' + retriever.getHttpURL() + '\n' + retriever.getCredentialsId()
+                + '\n' + library.getName() + '@' + version;
+        futures.put(library, RUNNING.computeIfAbsent(id, k -> {
+          FutureTask<FormValidation> task = new FutureTask<>(() -> {
+            try (ACLContext ignored = ACL.as2(authentication)) {
+              return retriever.checkVersion(library.getName(), version);
+            } finally {
+              RUNNING.remove(k);
+            }
+          });
+          EXECUTOR.execute(task);
+          return task;
+        }));
+      }
+    }
+    return futures;
+  }
+}
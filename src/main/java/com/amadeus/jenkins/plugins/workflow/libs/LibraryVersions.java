@@ -0,0 +1,250 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The versions of a library published in a repository, read from its metadata, against which dynamic versions are
+ * resolved.
+ * <p>
+ * The metadata is either a Maven {@code maven-metadata.xml}, or a JSON index: an array of versions, or an object with
+ * a {@code versions} array. The dynamic versions are:
+ * <ul>
+ * <li>{@code latest}, or {@code +}: the highest version</li>
+ * <li>a prefix followed by {@code +}, e.g. {@code 1.+}, {@code 1.2.+} or {@code 1+}: the highest version starting
+ * with the prefix, up to a {@code .} or {@code -} (so {@code 1+} does not match {@code 10.0})</li>
+ * </ul>
+ * Versions are compared part by part, numerically when both parts are numbers, a version with a classifier
+ * (e.g. {@code 1.2.0-beta}) being lower than the same version without.
+ */
+@Restricted(NoExternalUse.class)
+final class LibraryVersions {
+
+  static final String LATEST = "latest";
+
+  private static final String RANGE_SUFFIX = "+";
+
+  /**
+   * How long the metadata is used without asking the server. Older metadata is still used right away, and
+   * revalidated in the background.
+   */
+  private static final long TTL = TimeUnit.SECONDS.toMillis(
+          SystemProperties.getInteger(LibraryVersions.class.getName() + ".ttl", 300));
+
+  private final List<String> versions;
+  private final String etag;
+  private final String lastModified;
+  private final long fetched;
+
+  private LibraryVersions(List<String> versions, String etag, String lastModified, long fetched) {
+    this.versions = versions;
+    this.etag = etag;
+    this.lastModified = lastModified;
+    this.fetched = fetched;
+  }
+
+  /**
+   * @return Whether the version must be resolved against the metadata of the repository
+   */
+  static boolean isDynamic(@NonNull String version) {
+    return LATEST.equals(version) || version.endsWith(RANGE_SUFFIX);
+  }
+
+  /**
+   * Parses the metadata of a repository.
+   *
+   * @param content      A {@code maven-metadata.xml}, or a JSON index
+   * @param etag         ETag returned by the server, if any
+   * @param lastModified Last-Modified date returned by the server, if any
+   * @throws IOException if the content is neither
+   */
+  static LibraryVersions parse(@NonNull String content, @CheckForNull String etag, @CheckForNull String lastModified)
+          throws IOException {
+    String trimmed = content.trim();
+    List<String> versions = trimmed.startsWith("<") ? parseMavenMetadata(trimmed) : parseIndex(trimmed);
+    return new LibraryVersions(Collections.unmodifiableList(versions), etag, lastModified, System.currentTimeMillis());
+  }
+
+  /**
+   * @param versions Versions known without the metadata of the repository, e.g. the cached ones
+   * @return The given versions, to revalidate before using them again
+   */
+  static LibraryVersions of(@NonNull List<String> versions) {
+    return new LibraryVersions(Collections.unmodifiableList(new ArrayList<>(versions)), null, null, 0);
+  }
+
+  private static List<String> parseMavenMetadata(String content) throws IOException {
+    Document document;
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      document = factory.newDocumentBuilder().parse(new InputSource(new StringReader(content)));
+    } catch (ParserConfigurationException | SAXException e) {
+      throw new IOException("Invalid Maven metadata", e);
+    }
+    List<String> versions = new ArrayList<>();
+    NodeList nodes = document.getElementsByTagName("version");
+    for (int i = 0; i < nodes.getLength(); i++) {
+      Element version = (Element) nodes.item(i);
+      // The version of the artifact itself, if any, is not in the versioning
+      if ("versions".equals(version.getParentNode().getNodeName())) {
+        versions.add(version.getTextContent().trim());
+      }
+    }
+    return versions;
+  }
+
+  private static List<String> parseIndex(String content) throws IOException {
+    JSON json;
+    try {
+      json = JSONSerializer.toJSON(content);
+    } catch (JSONException e) {
+      throw new IOException("Invalid JSON index of versions", e);
+    }
+    if (json instanceof JSONObject && ((JSONObject) json).optJSONArray("versions") != null) {
+      json = ((JSONObject) json).getJSONArray("versions");
+    }
+    if (!(json instanceof JSONArray)) {
+      throw new IOException("The JSON index of versions is neither an array nor an object with a versions array");
+    }
+    List<String> versions = new ArrayList<>();
+    for (Object version : (JSONArray) json) {
+      versions.add(String.valueOf(version).trim());
+    }
+    return versions;
+  }
+
+  /**
+   * @return The same versions, confirmed by the server to be up to date
+   */
+  LibraryVersions revalidated() {
+    return new LibraryVersions(versions, etag, lastModified, System.currentTimeMillis());
+  }
+
+  /**
+   * @param now The current time, in milliseconds
+   * @return Whether the metadata can be used without revalidating it
+   */
+  boolean isFresh(long now) {
+    return now - fetched < TTL;
+  }
+
+  @CheckForNull
+  String getETag() {
+    return etag;
+  }
+
+  @CheckForNull
+  String getLastModified() {
+    return lastModified;
+  }
+
+  List<String> getVersions() {
+    return versions;
+  }
+
+  /**
+   * @param version A dynamic version, e.g. {@code 1.+} or {@code latest}
+   * @return The highest version matching it, or null if none does
+   */
+  @CheckForNull
+  String resolve(@NonNull String version) {
+    String prefix = LATEST.equals(version) ? "" : version.substring(0, version.length() - RANGE_SUFFIX.length());
+    String resolved = null;
+    for (String candidate : versions) {
+      if (!candidate.isEmpty() && matches(candidate, prefix)
+              && (resolved == null || compare(candidate, resolved) > 0)) {
+        resolved = candidate;
+      }
+    }
+    return resolved;
+  }
+
+  /**
+   * @return Whether the version starts with the prefix of a dynamic version, up to a part boundary, so that
+   * {@code 1+} matches {@code 1.2} and {@code 1-beta}, but not {@code 10.0}
+   */
+  private static boolean matches(String candidate, String prefix) {
+    if (!candidate.startsWith(prefix)) {
+      return false;
+    }
+    if (prefix.isEmpty() || prefix.endsWith(".") || prefix.endsWith("-") || candidate.length() == prefix.length()) {
+      return true;
+    }
+    char next = candidate.charAt(prefix.length());
+    return next == '.' || next == '-';
+  }
+
+  /**
+   * Compares two versions, e.g. {@code 1.10.0 > 1.9.2 > 1.9.2-beta > 1.9}
+   */
+  static int compare(@NonNull String version1, @NonNull String version2) {
+    int dash1 = version1.indexOf('-');
+    int dash2 = version2.indexOf('-');
+    String[] parts1 = (dash1 < 0 ? version1 : version1.substring(0, dash1)).split("\\.");
+    String[] parts2 = (dash2 < 0 ? version2 : version2.substring(0, dash2)).split("\\.");
+    for (int i = 0; i < Math.min(parts1.length, parts2.length); i++) {
+      int result = comparePart(parts1[i], parts2[i]);
+      if (result != 0) {
+        return result;
+      }
+    }
+    if (parts1.length != parts2.length) {
+      return Integer.compare(parts1.length, parts2.length);
+    }
+    if (dash1 < 0 || dash2 < 0) {
+      // A release is higher than its pre-releases
+      return Boolean.compare(dash1 < 0, dash2 < 0);
+    }
+    return version1.substring(dash1 + 1).compareTo(version2.substring(dash2 + 1));
+  }
+
+  private static int comparePart(String part1, String part2) {
+    if (isNumber(part1) && isNumber(part2)) {
+      // Compared as strings of the same length, so that any number of digits is supported
+      String number1 = part1.replaceFirst("^0+(?=.)", "");
+      String number2 = part2.replaceFirst("^0+(?=.)", "");
+      if (number1.length() != number2.length()) {
+        return Integer.compare(number1.length(), number2.length());
+      }
+      return number1.compareTo(number2);
+    }
+    return part1.compareTo(part2);
+  }
+
+  private static boolean isNumber(String part) {
+    if (part.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < part.length(); i++) {
+      if (!Character.isDigit(part.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,88 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.libs.FolderLibraries;
+import org.jenkinsci.plugins.workflow.libs.GlobalLibraries;
+import org.jenkinsci.plugins.workflow.libs.LibraryConfiguration;
+import org.jenkinsci.plugins.workflow.libs.LibraryResolver;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Starts downloading all the HTTP libraries of a build at once, as soon as they are known.
+ * <p>
+ * The libraries of a build are retrieved one after another. Before that, all the {@link LibraryResolver}s are asked
+ * for the libraries matching the {@code @Library} declarations of the build, which is the first time the whole set
+ * is known. This resolver runs first, reads the global libraries and the libraries of the folders of the job, which
+ * the resolvers of the global and folder libraries are about to return, and prefetches the HTTP ones in the
+ * background. The other resolvers are not asked to resolve the libraries once more. It does not contribute any library
+ * itself. The retrieval of each library then waits for its prefetch, if waiting or running, and uses the archive it
+ * downloaded.
+ */
+@Extension(ordinal = 1000)
+@Restricted(NoExternalUse.class)
+public class ParallelRetrievalResolver extends LibraryResolver {
+
+  /**
+   * Whether the libraries of a build are prefetched in parallel
+   */
+  @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "tunable from the script console")
+  public static boolean ENABLED =
+          SystemProperties.getBoolean(ParallelRetrievalResolver.class.getName() + ".enabled", true);
+
+  @Override
+  public boolean isTrusted() {
+    return false;
+  }
+
+  @NonNull
+  @Override
+  public Collection<LibraryConfiguration> forJob(@NonNull Job<?, ?> job, @NonNull Map<String, String> libraryVersions) {
+    if (ENABLED) {
+      // Where the build looks up the credentials
+      ItemGroup<?> context = job.getParent();
+      prefetch(GlobalLibraries.get().getLibraries(), libraryVersions, context);
+      for (ItemGroup<?> group = context; group instanceof AbstractFolder;
+           group = ((AbstractFolder<?>) group).getParent()) {
+        FolderLibraries libraries = ((AbstractFolder<?>) group).getProperties().get(FolderLibraries.class);
+        if (libraries != null) {
+          prefetch(libraries.getLibraries(), libraryVersions, context);
+        }
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  private static void prefetch(Collection<LibraryConfiguration> libraries, Map<String, String> libraryVersions,
+                               ItemGroup<?> context) {
+    for (LibraryConfiguration library : libraries) {
+      if (!(library.getRetriever() instanceof HttpRetriever)) {
+        continue;
+      }
+      String name = library.getName();
+      String version = libraryVersions.get(name);
+      if (version == null) {
+        if (!libraryVersions.containsKey(name) && !library.isImplicit()) {
+          continue;
+        }
+        version = library.getDefaultVersion();
+      } else if (!library.isAllowVersionOverride() && !version.equals(library.getDefaultVersion())) {
+        // The build will be rejected anyway
+        continue;
+      }
+      if (version != null && !version.isEmpty()) {
+        LibraryPrefetcher.get().prefetch((HttpRetriever) library.getRetriever(), name, version, context, false);
+      }
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiled form of the {@link HttpRetriever} URL template.
+ * <p>
+ * The template is parsed once into a list of literal and placeholder segments, so expanding it for a
+ * given library and version is a simple concatenation. The supported placeholders are, for a library NAME:
+ * <ul>
+ * <li>${library.NAME.version}: the whole version, e.g. {@code 1.2.3-beta}</li>
+ * <li>${library.NAME.name}: the name of the library</li>
+ * <li>${library.NAME.version.major}: the first dot-separated part of the version, e.g. {@code 1}</li>
+ * <li>${library.NAME.version.minor}: the second dot-separated part of the version, e.g. {@code 2}</li>
+ * <li>${library.NAME.version.patch}: the third dot-separated part of the version, e.g. {@code 3}</li>
+ * <li>${library.NAME.version.classifier}: what follows the first dash of the version, e.g. {@code beta}</li>
+ * </ul>
+ * Placeholders are matched as a whole against the name of the library being expanded, so that a name holding dots,
+ * or even {@code .version}, is not mistaken for a part of another placeholder. Placeholders referencing another
+ * library name, or unknown placeholders, are kept as is.
+ */
+@Restricted(NoExternalUse.class)
+final class UrlTemplate {
+
+  private static final String PLACEHOLDER_START = "${";
+  private static final String PLACEHOLDER_END = "}";
+  private static final String LIBRARY_PREFIX = "library.";
+
+  private final String template;
+  private final List<Segment> segments;
+
+  private UrlTemplate(String template, List<Segment> segments) {
+    this.template = template;
+    this.segments = segments;
+  }
+
+  /**
+   * Parses a URL template.
+   *
+   * @param template The URL template, as configured by the user
+   * @return The compiled template
+   */
+  static UrlTemplate compile(@NonNull String template) {
+    List<Segment> segments = new ArrayList<>();
+    int position = 0;
+    while (position < template.length()) {
+      int start = template.indexOf(PLACEHOLDER_START, position);
+      int end = start < 0 ? -1 : template.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+      if (end < 0) {
+        segments.add(new Segment(template.substring(position)));
+        break;
+      }
+      if (start > position) {
+        segments.add(new Segment(template.substring(position, start)));
+      }
+      String raw = template.substring(start, end + PLACEHOLDER_END.length());
+      String expression = template.substring(start + PLACEHOLDER_START.length(), end);
+      segments.add(expression.startsWith(LIBRARY_PREFIX) ? new Segment(raw, expression) : new Segment(raw));
+      position = end + PLACEHOLDER_END.length();
+    }
+    return new UrlTemplate(template, Collections.unmodifiableList(segments));
+  }
+
+  /**
+   * Expands the template for the given library.
+   *
+   * @param name    Name of the library
+   * @param version Version of the library
+   * @return The URL where the library can be downloaded
+   */
+  String expand(@NonNull String name, @NonNull String version) {
+    if (segments.size() == 1 && segments.get(0).expression == null) {
+      return template;
+    }
+    StringBuilder url = new StringBuilder(template.length() + 4 * version.length());
+    for (Segment segment : segments) {
+      Part part = segment.expression == null ? null : Part.of(segment.expression, name);
+      url.append(part == null ? segment.text : part.valueOf(name, version));
+    }
+    return url.toString();
+  }
+
+  @Override
+  public String toString() {
+    return template;
+  }
+
+  private static final class Segment {
+    /**
+     * The literal text, or the raw placeholder if it does not apply to the library being expanded
+     */
+    private final String text;
+
+    /**
+     * What is between the braces of a placeholder of a library, e.g. {@code library.NAME.version}, null otherwise
+     */
+    private final String expression;
+
+    Segment(String text) {
+      this(text, null);
+    }
+
+    Segment(String text, String expression) {
+      this.text = text;
+      this.expression = expression;
+    }
+  }
+
+  private enum Part {
+    VERSION(".version") {
+      @Override
+      String valueOf(String name, String version) {
+        return version;
+      }
+    },
+    NAME(".name") {
+      @Override
+      String valueOf(String name, String version) {
+        return name;
+      }
+    },
+    MAJOR(".version.major") {
+      @Override
+      String valueOf(String name, String version) {
+        return numberAt(version, 0);
+      }
+    },
+    MINOR(".version.minor") {
+      @Override
+      String valueOf(String name, String version) {
+        return numberAt(version, 1);
+      }
+    },
+    PATCH(".version.patch") {
+      @Override
+      String valueOf(String name, String version) {
+        return numberAt(version, 2);
+      }
+    },
+    CLASSIFIER(".version.classifier") {
+      @Override
+      String valueOf(String name, String version) {
+        int dash = version.indexOf('-');
+        return dash < 0 ? "" : version.substring(dash + 1);
+      }
+    };
+
+    private final String suffix;
+
+    Part(String suffix) {
+      this.suffix = suffix;
+    }
+
+    abstract String valueOf(String name, String version);
+
+    /**
+     * @param expression What is between the braces of a placeholder, starting with {@code library.}
+     * @param name       Name of the library being expanded
+     * @return The part of the version the placeholder is exactly, for the library, or null if it is not one
+     */
+    static Part of(String expression, String name) {
+      int length = LIBRARY_PREFIX.length() + name.length();
+      if (expression.length() <= length || !expression.startsWith(name, LIBRARY_PREFIX.length())) {
+        return null;
+      }
+      String suffix = expression.substring(length);
+      for (Part part : values()) {
+        if (part.suffix.equals(suffix)) {
+          return part;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return the index-th dot-separated part of the version, without its classifier, or an empty string
+     */
+    private static String numberAt(String version, int index) {
+      int dash = version.indexOf('-');
+      int end = dash < 0 ? version.length() : dash;
+      int start = 0;
+      for (int i = 0; i < index; i++) {
+        int dot = version.indexOf('.', start);
+        if (dot < 0 || dot >= end) {
+          return "";
+        }
+        start = dot + 1;
+      }
+      int dot = version.indexOf('.', start);
+      return version.substring(start, dot < 0 || dot > end ? end : dot);
+    }
+  }
+}
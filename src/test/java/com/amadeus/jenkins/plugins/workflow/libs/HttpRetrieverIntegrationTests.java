@@ -3,6 +3,8 @@ package com.amadeus.jenkins.plugins.workflow.libs;
 import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebRequest;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import com.github.tomakehurst.wiremock.http.RequestMethod;
@@ -10,6 +12,7 @@ import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import com.github.tomakehurst.wiremock.matching.MatchResult;
 import hudson.ExtensionList;
 import hudson.FilePath;
+import hudson.util.FormValidation;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpHeaders;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
@@ -26,6 +29,7 @@ import org.jvnet.hudson.test.JenkinsRule;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.InputStream;
+import java.net.URL;
 import java.util.Objects;
 import java.util.function.Function;
 
@@ -269,4 +273,78 @@ public class HttpRetrieverIntegrationTests {
         Assert.assertTrue(target.child("resources").exists());
     }
 
+    @Test
+    public void retrievesSeveralLibraries() throws Exception {
+        InputStream archive = Objects.requireNonNull(ClassLoader.getSystemResourceAsStream("http-lib-retriever-tests.zip"));
+        wireMock.stubFor(
+                WireMock.get(WireMock.anyUrl())
+                        .atPriority(2)
+                        .withBasicAuth(credentials.getUsername(), credentials.getPassword().getPlainText())
+                        .willReturn(WireMock.aResponse().withBody(IOUtils.toByteArray(archive))));
+        for (String libraryName : new String[]{"foo", "bar", "baz"}) {
+            LibraryConfiguration library = new LibraryConfiguration(libraryName, new HttpRetriever(
+                    wireMock.url(libraryName + "-${library." + libraryName + ".version}.zip"), credentials.getId(), false));
+            library.setDefaultVersion("1.0");
+            library.setImplicit(libraryName.equals("baz"));
+            globalLibraries.getLibraries().add(library);
+        }
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("@Library(['foo@1.0', 'bar@2.0']) _", true));
+
+        WorkflowRun run = j.buildAndAssertSuccess(p);
+
+        for (String libraryName : new String[]{"foo", "bar", "baz"}) {
+            FilePath target = new FilePath(run.getRootDir().toPath().resolve("libs").resolve(libraryName).toFile());
+            Assert.assertTrue(target.child("vars").exists());
+        }
+        wireMock.verify(WireMock.getRequestedFor(WireMock.urlEqualTo("/bar-2.0.zip")));
+    }
+
+    @Test
+    public void validatesDefaultVersionsOfConfiguredLibrariesTogether() throws Exception {
+        wireMock.stubFor(WireMock.head(WireMock.anyUrl()).willReturn(WireMock.ok()));
+        for (String libraryName : new String[]{"foo", "bar"}) {
+            LibraryConfiguration library = new LibraryConfiguration(libraryName, new HttpRetriever(
+                    wireMock.url(libraryName + "-${library." + libraryName + ".version}.zip"), "", false));
+            library.setDefaultVersion("1.0");
+            globalLibraries.getLibraries().add(library);
+        }
+        HttpRetriever foo = (HttpRetriever) globalLibraries.getLibraries().get(0).getRetriever();
+        HttpRetriever bar = (HttpRetriever) globalLibraries.getLibraries().get(1).getRetriever();
+
+        FormValidation validation = j.executeOnServer(() -> foo.validateVersion("foo", "1.0"));
+        Assert.assertTrue(validation.getMessage(), validation.getMessage().startsWith("Version 1.0 is valid."));
+        wireMock.verify(1, WireMock.headRequestedFor(WireMock.urlEqualTo("/bar-1.0.zip")));
+
+        validation = j.executeOnServer(() -> bar.validateVersion("bar", "1.0"));
+        Assert.assertTrue(validation.getMessage(), validation.getMessage().startsWith("Version 1.0 is valid."));
+        wireMock.verify(1, WireMock.headRequestedFor(WireMock.urlEqualTo("/bar-1.0.zip")));
+        wireMock.verify(1, WireMock.headRequestedFor(WireMock.urlEqualTo("/foo-1.0.zip")));
+    }
+
+    @Test
+    public void downloadsNotifiedLibraryVersionInTheCache() throws Exception {
+        InputStream archive = Objects.requireNonNull(ClassLoader.getSystemResourceAsStream("http-lib-retriever-tests.zip"));
+        wireMock.stubFor(
+                WireMock.get(WireMock.anyUrl())
+                        .atPriority(2)
+                        .withBasicAuth(credentials.getUsername(), credentials.getPassword().getPlainText())
+                        .willReturn(WireMock.aResponse().withBody(IOUtils.toByteArray(archive))));
+        globalLibraries.getLibraries().add(new LibraryConfiguration(
+                "foo",
+                new HttpRetriever(wireMock.url("foo-${library.foo.version}.zip"), credentials.getId(), false)
+        ));
+
+        JenkinsRule.WebClient webClient = j.createWebClient();
+        WebRequest request = new WebRequest(
+                new URL(j.getURL(), "http-shared-libraries/notify?library=foo&version=1.0"), HttpMethod.POST);
+        webClient.getPage(webClient.addCrumb(request));
+
+        String key = HttpRetriever.keyOf(wireMock.url("foo-1.0.zip"), credentials);
+        for (int i = 0; i < 100 && LibraryCache.get().get(key) == null; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertNotNull(LibraryCache.get().get(key));
+    }
+
 }
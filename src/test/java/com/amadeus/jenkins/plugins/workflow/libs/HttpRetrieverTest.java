@@ -3,35 +3,52 @@ package com.amadeus.jenkins.plugins.workflow.libs;
 import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
 import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import com.github.tomakehurst.wiremock.client.BasicCredentials;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import com.github.tomakehurst.wiremock.http.RequestMethod;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import com.github.tomakehurst.wiremock.matching.MatchResult;
+import hudson.AbortException;
 import hudson.FilePath;
 import hudson.model.Computer;
 import hudson.model.FreeStyleProject;
+import hudson.model.ItemGroup;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.slaves.WorkspaceList;
 import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpHeaders;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 @RunWith(MockitoJUnitRunner.class)
 public class HttpRetrieverTest {
@@ -60,12 +77,24 @@ public class HttpRetrieverTest {
     @Rule
     public WireMockRule wireMock = new WireMockRule(WireMockConfiguration.options().dynamicPort());
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Another host, that the repository redirects to
+     */
+    @Rule
+    public WireMockRule otherHost = new WireMockRule(WireMockConfiguration.options().dynamicPort());
+
     HttpRetrieverStub retriever;
 
+    LibraryCache cache;
+
     @org.junit.Before
     public void setUp() throws Exception {
 
         target = new FilePath(Files.createTempDirectory("http-lib-retriever-tests").toFile());
+        cache = new LibraryCache(Files.createTempDirectory("http-lib-retriever-cache").toFile());
         Mockito.when(run.getParent()).thenReturn(parent);
         Mockito.when(jenkins.getWorkspaceFor(parent)).thenReturn(target);
         Mockito.when(listener.getLogger()).thenReturn(System.out);
@@ -253,6 +282,263 @@ public class HttpRetrieverTest {
         Assert.assertEquals(FormValidation.Kind.WARNING, validation.kind);
     }
 
+    @Test
+    public void remembersValidVersionForAWhile() {
+        for (int i = 0; i < 2; i++) {
+            FormValidation validation = retriever.validateVersion("library-name", "1.2.3");
+            Assert.assertEquals(FormValidation.Kind.OK, validation.kind);
+        }
+        wireMock.verify(1, WireMock.headRequestedFor(WireMock.urlMatching(".*" + RSC_FILE)));
+    }
+
+    @Test
+    public void revalidatesCachedArchive() throws Exception {
+        byte[] archive = IOUtils.toByteArray(Objects.requireNonNull(ClassLoader.getSystemResourceAsStream(RSC_FILE)));
+        wireMock.stubFor(
+                WireMock.get(WireMock.urlMatching(".*" + RSC_FILE))
+                        .atPriority(1)
+                        .withHeader(HttpHeaders.IF_NONE_MATCH, WireMock.equalTo("\"v1\""))
+                        .willReturn(WireMock.status(HttpURLConnection.HTTP_NOT_MODIFIED)));
+        wireMock.stubFor(
+                WireMock.get(WireMock.urlMatching(".*" + RSC_FILE))
+                        .atPriority(2)
+                        .willReturn(WireMock.aResponse().withHeader(HttpHeaders.ETAG, "\"v1\"").withBody(archive)));
+
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        FilePath secondTarget = new FilePath(Files.createTempDirectory("http-lib-retriever-tests").toFile());
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", secondTarget, run, listener);
+
+        Assert.assertTrue(secondTarget.child("version.txt").exists());
+        Assert.assertTrue(secondTarget.child("src").exists());
+        wireMock.verify(1, WireMock.getRequestedFor(WireMock.urlMatching(".*" + RSC_FILE))
+                .withHeader(HttpHeaders.IF_NONE_MATCH, WireMock.equalTo("\"v1\"")));
+    }
+
+    @Test
+    public void usesRecentCachedArchiveAndRevalidatesInBackground() throws Exception {
+        retriever.setMaxStale(60);
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        Assert.assertEquals(0, retriever.backgroundRefreshes);
+
+        FilePath secondTarget = new FilePath(Files.createTempDirectory("http-lib-retriever-tests").toFile());
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", secondTarget, run, listener);
+
+        Assert.assertTrue(secondTarget.child("version.txt").exists());
+        Assert.assertEquals(1, retriever.backgroundRefreshes);
+        wireMock.verify(1, WireMock.getRequestedFor(WireMock.urlMatching(".*" + RSC_FILE))
+                .withHeader(HttpHeaders.AUTHORIZATION, WireMock.matching(".*")));
+    }
+
+    @Test
+    public void usesStaleCachedArchiveIfServerFails() throws Exception {
+        retriever.setMaxStale(1);
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        retriever.clockOffset = 2000;
+        wireMock.stubFor(
+                WireMock.get(WireMock.urlMatching(".*" + RSC_FILE))
+                        .atPriority(1)
+                        .willReturn(WireMock.serviceUnavailable()));
+
+        FilePath secondTarget = new FilePath(Files.createTempDirectory("http-lib-retriever-tests").toFile());
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", secondTarget, run, listener);
+
+        Assert.assertTrue(secondTarget.child("version.txt").exists());
+        Assert.assertEquals(0, retriever.backgroundRefreshes);
+    }
+
+    @Test(expected = IOException.class)
+    public void doesNotUseStaleCachedArchiveIfNotFound() throws Exception {
+        retriever.setMaxStale(1);
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        retriever.clockOffset = 2000;
+        wireMock.stubFor(
+                WireMock.get(WireMock.urlMatching(".*" + RSC_FILE))
+                        .atPriority(1)
+                        .willReturn(WireMock.notFound()));
+
+        FilePath secondTarget = new FilePath(Files.createTempDirectory("http-lib-retriever-tests").toFile());
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", secondTarget, run, listener);
+    }
+
+    @Test
+    public void doesNotUseArchiveCachedWithOtherCredentials() throws Exception {
+        retriever.setMaxStale(60);
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+
+        passwordCredentials = new UsernamePasswordCredentialsImpl(
+                CredentialsScope.SYSTEM, "idcreds", "descr", "user", "other");
+        FilePath secondTarget = new FilePath(Files.createTempDirectory("http-lib-retriever-tests").toFile());
+        try {
+            retriever.retrieve("http-lib-retriever-tests", "1.2.3", secondTarget, run, listener);
+            Assert.fail("The archive should not be given to a build with other credentials");
+        } catch (HttpStatusException e) {
+            // The server rejects these credentials
+        }
+        Assert.assertFalse(secondTarget.child("version.txt").exists());
+        Assert.assertEquals(0, retriever.backgroundRefreshes);
+        wireMock.verify(WireMock.getRequestedFor(WireMock.urlMatching(".*" + RSC_FILE))
+                .withBasicAuth(new BasicCredentials("user", "other")));
+    }
+
+    @Test
+    public void doesNotUseArchiveCachedWithCredentialsWhenOfflineWithout() throws Exception {
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+
+        passwordCredentials = null;
+        retriever.offline = true;
+        FilePath secondTarget = new FilePath(Files.createTempDirectory("http-lib-retriever-tests").toFile());
+        try {
+            retriever.retrieve("http-lib-retriever-tests", "1.2.3", secondTarget, run, listener);
+            Assert.fail("The archive should not be given to a build without the credentials");
+        } catch (AbortException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(LibraryBundle.CLI_COMMAND));
+        }
+        Assert.assertFalse(secondTarget.child("version.txt").exists());
+    }
+
+    @Test
+    public void keepsCachedArchiveReadableWhileDownloadingItAgain() throws Exception {
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        String key = HttpRetriever.keyOf(getUrl(RSC_FILE), passwordCredentials);
+        long fetched = cache.get(key).getFetched();
+        wireMock.stubFor(
+                WireMock.get(WireMock.urlMatching(".*" + RSC_FILE))
+                        .atPriority(1)
+                        .willReturn(WireMock.aResponse().withFixedDelay(5000).withBody(IOUtils.toByteArray(
+                                Objects.requireNonNull(ClassLoader.getSystemResourceAsStream(RSC_FILE))))));
+
+        Thread prefetch = new Thread(() -> {
+            try {
+                retriever.prefetch("http-lib-retriever-tests", "1.2.3", jenkins, true);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        prefetch.start();
+        while (wireMock.findAll(WireMock.getRequestedFor(WireMock.urlMatching(".*" + RSC_FILE))).size() < 2) {
+            Thread.sleep(10);
+        }
+        long start = System.nanoTime();
+        try (LibraryCache.Handle handle = cache.open(key)) {
+            Assert.assertNotNull(handle);
+            Assert.assertEquals(fetched, handle.getEntry().getFetched());
+        }
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        prefetch.join();
+        Assert.assertTrue(cache.get(key).getFetched() > fetched);
+    }
+
+    @Test
+    public void usesArchivePrefetchedForBuild() throws Exception {
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+
+        retriever.prefetching = true;
+        FilePath secondTarget = new FilePath(Files.createTempDirectory("http-lib-retriever-tests").toFile());
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", secondTarget, run, listener);
+
+        Assert.assertTrue(secondTarget.child("version.txt").exists());
+        wireMock.verify(2, WireMock.getRequestedFor(WireMock.urlMatching(".*" + RSC_FILE))
+                .withHeader(HttpHeaders.AUTHORIZATION, WireMock.matching(".*")));
+    }
+
+    @Test
+    public void remembersNotFoundForAWhile() throws Exception {
+        wireMock.stubFor(
+                WireMock.any(WireMock.urlMatching(".*" + RSC_FILE))
+                        .atPriority(1)
+                        .willReturn(WireMock.notFound()));
+        for (int i = 0; i < 2; i++) {
+            try {
+                retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+                Assert.fail("The library should not be found");
+            } catch (HttpStatusException e) {
+                Assert.assertEquals(HttpURLConnection.HTTP_NOT_FOUND, e.getStatusCode());
+            }
+            FormValidation validation = retriever.validateVersion("http-lib-retriever-tests", "1.2.3");
+            Assert.assertEquals(FormValidation.Kind.WARNING, validation.kind);
+        }
+        wireMock.verify(1, WireMock.getRequestedFor(WireMock.urlMatching(".*" + RSC_FILE)));
+        wireMock.verify(1, WireMock.headRequestedFor(WireMock.urlMatching(".*" + RSC_FILE)));
+    }
+
+    @Test
+    public void skipsLibraryAlreadyRetrievedInTarget() throws Exception {
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+
+        Assert.assertTrue(target.child("version.txt").exists());
+        wireMock.verify(1, WireMock.getRequestedFor(WireMock.urlMatching(".*" + RSC_FILE))
+                .withHeader(HttpHeaders.AUTHORIZATION, WireMock.matching(".*")));
+    }
+
+    @Test
+    public void writesLibraryKeptInMemoryIntoNextBuild() throws Exception {
+        LibraryTreeCache trees = new LibraryTreeCache(1024 * 1024, 1024 * 1024);
+        cache = new LibraryCache(folder.newFolder()) {
+            @Override
+            LibraryTreeCache getTrees() {
+                return trees;
+            }
+        };
+        FilePath first = new FilePath(folder.newFolder());
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", first, run, listener);
+        Assert.assertTrue(trees.getSize() > 0);
+
+        // Written from memory, so the stored files are not read anymore
+        try (Stream<Path> objects = Files.walk(new File(cache.getRoot(), "store/objects").toPath())) {
+            for (Path object : (Iterable<Path>) objects.filter(Files::isRegularFile)::iterator) {
+                object.toFile().setWritable(true);
+                Files.write(object, "corrupted".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        FilePath second = new FilePath(folder.newFolder());
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", second, run, listener);
+
+        Assert.assertEquals(first.child("version.txt").readToString(), second.child("version.txt").readToString());
+        Assert.assertTrue(second.child("src").exists());
+    }
+
+    @Test
+    public void downloadsOnlyChangedFilesOfLibraryPublishedAsFiles() throws Exception {
+        stubFiles("1.0", "src/Foo.groovy", "foo", "vars/bar.groovy", "bar", "version.txt", "1.0");
+        stubFiles("2.0", "src/Foo.groovy", "foo", "vars/bar.groovy", "bar2", "version.txt", "2.0");
+        retriever.setFilesURL(getUrl("files/${library.lib.version}/SHA256SUMS"));
+
+        retriever.retrieve("lib", "1.0", target, run, listener);
+        FilePath secondTarget = new FilePath(Files.createTempDirectory("http-lib-retriever-tests").toFile());
+        retriever.retrieve("lib", "2.0", secondTarget, run, listener);
+
+        Assert.assertEquals("foo", secondTarget.child("src/Foo.groovy").readToString());
+        Assert.assertEquals("bar2", secondTarget.child("vars/bar.groovy").readToString());
+        wireMock.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo("/files/2.0/vars/bar.groovy")));
+        wireMock.verify(0, WireMock.getRequestedFor(WireMock.urlEqualTo("/files/2.0/src/Foo.groovy")));
+        wireMock.verify(0, WireMock.getRequestedFor(WireMock.urlMatching(".*" + RSC_FILE)));
+    }
+
+    @Test
+    public void downloadsArchiveIfFilesAreNotListed() throws Exception {
+        retriever.setFilesURL(getUrl("files/${library.http-lib-retriever-tests.version}/SHA256SUMS"));
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        Assert.assertTrue(target.child("src").exists());
+        Assert.assertTrue(target.child("version.txt").exists());
+    }
+
+    /**
+     * Publishes a version of a library as separate files, listed with their SHA-256
+     */
+    private void stubFiles(String version, String... files) {
+        StringBuilder sums = new StringBuilder();
+        for (int i = 0; i < files.length; i += 2) {
+            sums.append(DigestUtils.sha256Hex(files[i + 1])).append("  ./").append(files[i]).append('\n');
+            wireMock.stubFor(WireMock.get(WireMock.urlEqualTo("/files/" + version + "/" + files[i]))
+                    .atPriority(1)
+                    .willReturn(WireMock.aResponse().withBody(files[i + 1])));
+        }
+        wireMock.stubFor(WireMock.get(WireMock.urlEqualTo("/files/" + version + "/SHA256SUMS"))
+                .atPriority(1)
+                .willReturn(WireMock.aResponse().withBody(sums.toString())));
+    }
+
     @Test(expected = IOException.class)
     public void failsIfContainsRefToParent() throws Exception {
         createRetriever(getUrl("folder-lib_hack.zip"), "folder-lib_hack.zip");
@@ -262,11 +548,265 @@ public class HttpRetrieverTest {
         Assert.assertTrue(target.child("resources").exists());
     }
 
+    @Test
+    public void recordsLibraryAndBuildsOfCachedArchive() throws Exception {
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        LibraryCache.Entry entry = cache.getEntries().iterator().next();
+        Assert.assertEquals("http-lib-retriever-tests", entry.getLibrary());
+        Assert.assertEquals("1.2.3", entry.getVersion());
+        Assert.assertEquals(1, cache.getUsage(entry.getKey()).getHits());
+    }
+
+    @Test
+    public void abortsDownloadLargerThanMaximum() throws Exception {
+        retriever.maxDownloadSize = 100;
+        try {
+            retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+            Assert.fail("The archive should be too large");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("maximum download size"));
+        }
+        Assert.assertFalse(target.child("version.txt").exists());
+    }
+
+    @Test
+    public void abortsFilesLargerThanMaximumTogether() throws Exception {
+        String content = String.join("", Collections.nCopies(300, "x"));
+        stubFiles("1.0", "src/Foo.groovy", content + "foo", "vars/bar.groovy", content + "bar",
+                "version.txt", content + "1.0");
+        retriever.setFilesURL(getUrl("files/${library.lib.version}/SHA256SUMS"));
+        // Each file is below the maximum, but not all of them, nor the whole archive
+        retriever.maxDownloadSize = 500;
+        try {
+            retriever.retrieve("lib", "1.0", target, run, listener);
+            Assert.fail("The library should be too large");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("maximum download size"));
+        }
+        Assert.assertFalse(target.child("version.txt").exists());
+        wireMock.verify(WireMock.getRequestedFor(WireMock.urlEqualTo("/files/1.0/SHA256SUMS")));
+    }
+
+    @Test
+    public void authenticatesRightAwayOnceChallenged() throws Exception {
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        Assert.assertEquals(1, wireMock.findAll(WireMock.getRequestedFor(WireMock.anyUrl())
+                .withoutHeader(HttpHeaders.AUTHORIZATION)).size());
+        Assert.assertEquals(3, wireMock.findAll(WireMock.getRequestedFor(WireMock.anyUrl())).size());
+    }
+
+    @Test
+    public void sendsPasswordAsBearerToken() throws Exception {
+        retriever.setTokenHeader("Authorization");
+        String token = passwordCredentials.getPassword().getPlainText();
+        wireMock.stubFor(
+                WireMock.get(WireMock.urlMatching(".*" + RSC_FILE))
+                        .withHeader(HttpHeaders.AUTHORIZATION, WireMock.equalTo("Bearer " + token))
+                        .atPriority(1)
+                        .willReturn(WireMock.aResponse().withBody(IOUtils.toByteArray(
+                                Objects.requireNonNull(ClassLoader.getSystemResourceAsStream(RSC_FILE))))));
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        Assert.assertTrue(target.child("version.txt").exists());
+        Assert.assertEquals(1, wireMock.findAll(WireMock.getRequestedFor(WireMock.anyUrl())).size());
+    }
+
+    @Test
+    public void sendsPasswordInApiTokenHeader() throws Exception {
+        retriever.setTokenHeader("X-JFrog-Art-Api");
+        String token = passwordCredentials.getPassword().getPlainText();
+        wireMock.stubFor(
+                WireMock.get(WireMock.urlMatching(".*" + RSC_FILE))
+                        .withHeader("X-JFrog-Art-Api", WireMock.equalTo(token))
+                        .atPriority(1)
+                        .willReturn(WireMock.aResponse().withBody(IOUtils.toByteArray(
+                                Objects.requireNonNull(ClassLoader.getSystemResourceAsStream(RSC_FILE))))));
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+        Assert.assertTrue(target.child("version.txt").exists());
+        Assert.assertEquals(1, wireMock.findAll(WireMock.getRequestedFor(WireMock.anyUrl())).size());
+    }
+
+    @Test
+    public void doesNotSendTokenHeaderToOtherHost() throws Exception {
+        retriever.setTokenHeader("X-JFrog-Art-Api");
+        String token = passwordCredentials.getPassword().getPlainText();
+        wireMock.stubFor(
+                WireMock.get(WireMock.urlMatching(".*" + RSC_FILE))
+                        .withHeader("X-JFrog-Art-Api", WireMock.equalTo(token))
+                        .atPriority(1)
+                        .willReturn(WireMock.temporaryRedirect(otherHost.url(RSC_FILE))));
+        otherHost.stubFor(
+                WireMock.get(WireMock.urlEqualTo("/" + RSC_FILE))
+                        .willReturn(WireMock.aResponse().withBody(IOUtils.toByteArray(
+                                Objects.requireNonNull(ClassLoader.getSystemResourceAsStream(RSC_FILE))))));
+
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+
+        Assert.assertTrue(target.child("version.txt").exists());
+        otherHost.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo("/" + RSC_FILE)));
+        otherHost.verify(0, WireMock.getRequestedFor(WireMock.anyUrl())
+                .withHeader("X-JFrog-Art-Api", WireMock.matching(".*")));
+    }
+
+    @Test
+    public void usesImportedArchiveWhenOffline() throws Exception {
+        importBundle("1.2.3");
+
+        retriever.offline = true;
+        retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+
+        Assert.assertTrue(target.child("version.txt").exists());
+        Assert.assertTrue(wireMock.getAllServeEvents().isEmpty());
+    }
+
+    @Test
+    public void resolvesDynamicVersionFromImportedArchivesWhenOffline() throws Exception {
+        retriever = new HttpRetrieverStub(getUrl("lib-${library.http-lib-retriever-tests.version}.zip"));
+        retriever.setVersionsURL(getUrl("versions.json"));
+        importBundle("1.2.3", "1.10.0", "10.0");
+
+        retriever.offline = true;
+        Assert.assertEquals("1.10.0", retriever.resolveVersion("http-lib-retriever-tests", "1.+", passwordCredentials));
+        try {
+            retriever.resolveVersion("http-lib-retriever-tests", "2.+", passwordCredentials);
+            Assert.fail("No cached version should match");
+        } catch (AbortException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(LibraryBundle.CLI_COMMAND));
+        }
+        Assert.assertTrue(wireMock.getAllServeEvents().isEmpty());
+    }
+
+    @Test
+    public void doesNotPrefetchNorValidateWhenOffline() throws Exception {
+        // Validated without credentials, by a user who is not an administrator
+        passwordCredentials = null;
+        retriever.offline = true;
+
+        retriever.prefetch("http-lib-retriever-tests", "1.2.3", jenkins, true);
+        Assert.assertNull(cache.get(HttpRetriever.keyOf(getUrl(RSC_FILE), null)));
+        Assert.assertEquals(FormValidation.Kind.WARNING,
+                retriever.validateVersion("http-lib-retriever-tests", "1.2.3").kind);
+
+        importBundle("1.2.3");
+        Assert.assertEquals(FormValidation.Kind.OK,
+                retriever.validateVersion("http-lib-retriever-tests", "1.2.3").kind);
+        Assert.assertTrue(wireMock.getAllServeEvents().isEmpty());
+    }
+
+    /**
+     * Imports a bundle with the test archive as the given versions of the library, for the retriever
+     */
+    private void importBundle(String... versions) throws Exception {
+        File bundle = folder.newFolder();
+        JSONArray libraries = new JSONArray();
+        for (String version : versions) {
+            String file = "lib-" + version + ".zip";
+            Files.copy(Objects.requireNonNull(ClassLoader.getSystemResourceAsStream(RSC_FILE)),
+                    new File(bundle, file).toPath());
+            JSONObject library = new JSONObject();
+            library.put("name", "http-lib-retriever-tests");
+            library.put("version", version);
+            library.put("file", file);
+            libraries.add(library);
+        }
+        JSONObject manifest = new JSONObject();
+        manifest.put("libraries", libraries);
+        Files.write(new File(bundle, LibraryBundle.MANIFEST).toPath(),
+                manifest.toString().getBytes(StandardCharsets.UTF_8));
+        LibraryBundle.importDirectory(bundle, cache, name -> Collections.singletonMap(retriever, jenkins));
+    }
+
+    @Test
+    public void failsWhenOfflineAndNotCached() throws Exception {
+        retriever.offline = true;
+        try {
+            retriever.retrieve("http-lib-retriever-tests", "1.2.3", target, run, listener);
+            Assert.fail("The archive should not be downloaded");
+        } catch (AbortException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(LibraryBundle.CLI_COMMAND));
+        }
+        Assert.assertTrue(wireMock.getAllServeEvents().isEmpty());
+    }
+
+    @Test
+    public void logsResolvedVersion() throws Exception {
+        stubVersions();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        Mockito.when(listener.getLogger()).thenReturn(new PrintStream(log, true, "UTF-8"));
+
+        retriever.retrieve("http-lib-retriever-tests", "1+", target, run, listener);
+
+        Assert.assertTrue(target.child("version.txt").exists());
+        String output = new String(log.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(output, output.contains(
+                "Resolving version 1+ of library http-lib-retriever-tests to 1.10.0..."));
+    }
+
+    @Test
+    public void resolvesVersionFromCachedMetadata() throws Exception {
+        stubVersions();
+
+        Assert.assertEquals("1.10.0", retriever.resolveVersion("foo", "1.+", passwordCredentials));
+        Assert.assertEquals("10.0", retriever.resolveVersion("foo", "latest", passwordCredentials));
+
+        Assert.assertEquals(0, retriever.backgroundRefreshes);
+        wireMock.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo("/versions.json")));
+    }
+
+    @Test
+    public void revalidatesStaleMetadataInBackground() throws Exception {
+        stubVersions();
+        wireMock.stubFor(
+                WireMock.get(WireMock.urlEqualTo("/versions.json"))
+                        .atPriority(1)
+                        .withHeader(HttpHeaders.IF_NONE_MATCH, WireMock.equalTo("\"v1\""))
+                        .willReturn(WireMock.status(HttpURLConnection.HTTP_NOT_MODIFIED)));
+        retriever.resolveVersion("foo", "1.+", passwordCredentials);
+
+        retriever.clockOffset = TimeUnit.HOURS.toMillis(1);
+        Assert.assertEquals("1.10.0", retriever.resolveVersion("foo", "1.+", passwordCredentials));
+        Assert.assertEquals(1, retriever.backgroundRefreshes);
+        wireMock.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo("/versions.json")));
+
+        retriever.refresh.call();
+        wireMock.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo("/versions.json"))
+                .withHeader(HttpHeaders.IF_NONE_MATCH, WireMock.equalTo("\"v1\"")));
+        Assert.assertEquals("1.10.0", retriever.resolveVersion("foo", "1.+", passwordCredentials));
+    }
+
+    @Test
+    public void abortsIfNoPublishedVersionMatches() throws Exception {
+        stubVersions();
+        try {
+            retriever.resolveVersion("foo", "3.+", passwordCredentials);
+            Assert.fail("No version should match");
+        } catch (AbortException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("3.+"));
+        }
+    }
+
+    /**
+     * Publishes the list of versions of the library, that the retriever resolves dynamic versions against
+     */
+    private void stubVersions() {
+        wireMock.stubFor(
+                WireMock.get(WireMock.urlEqualTo("/versions.json"))
+                        .atPriority(2)
+                        .willReturn(WireMock.aResponse().withHeader(HttpHeaders.ETAG, "\"v1\"")
+                                .withBody("[\"1.2.3\", \"1.10.0\", \"1.10.0-beta\", \"10.0\"]")));
+        retriever.setVersionsURL(getUrl("versions.json"));
+    }
 
     private class HttpRetrieverStub extends HttpRetriever {
 
         private boolean httpsUsed = true;
         private boolean preemptiveAuth = false;
+        private int backgroundRefreshes = 0;
+        private long maxDownloadSize = 0;
+        private boolean offline = false;
+        private long clockOffset = 0;
+        private boolean prefetching = false;
+        private Callable<?> refresh;
 
         public HttpRetrieverStub(String url) {
             super(url, "credentialsId", false);
@@ -287,6 +827,11 @@ public class HttpRetrieverTest {
             return passwordCredentials;
         }
 
+        @Override
+        UsernamePasswordCredentials findCredentials(String credentialsId, ItemGroup<?> context) {
+            return passwordCredentials;
+        }
+
         @Override
         boolean isSecure(URL url) {
             return httpsUsed;
@@ -297,6 +842,45 @@ public class HttpRetrieverTest {
             return passwordCredentials;
         }
 
+        @Override
+        LibraryCache getCache() {
+            return cache;
+        }
+
+        @Override
+        boolean isOffline() {
+            return offline;
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return System.currentTimeMillis() + clockOffset;
+        }
+
+        @Override
+        long getMaxDownloadSize() {
+            return maxDownloadSize;
+        }
+
+        @Override
+        boolean awaitPrefetch(String name, String version, Run<?, ?> run) throws InterruptedException {
+            if (!prefetching) {
+                return false;
+            }
+            try {
+                prefetch(name, version, jenkins, false);
+                return true;
+            } catch (IOException | URISyntaxException e) {
+                return false;
+            }
+        }
+
+        @Override
+        void refreshInBackground(String key, String sourceURL, Callable<?> refresh) {
+            backgroundRefreshes++;
+            this.refresh = refresh;
+        }
+
         Computer getSlave() throws IOException {
             return computer;
         }
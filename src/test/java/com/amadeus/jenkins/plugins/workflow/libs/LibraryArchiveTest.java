@@ -0,0 +1,172 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class LibraryArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stripsWrappingDirectory() throws Exception {
+        File zip = zip("lib-1.0/", "lib-1.0/src/Foo.groovy", "lib-1.0/vars/foo.groovy", "lib-1.0/version.txt");
+        File target = folder.newFolder();
+        LibraryArchive.extract(zip, target, LibraryArchive.Filter.ALL);
+        Assert.assertTrue(new File(target, "src/Foo.groovy").isFile());
+        Assert.assertTrue(new File(target, "vars/foo.groovy").isFile());
+        Assert.assertEquals("version.txt", read(new File(target, "version.txt")));
+        Assert.assertFalse(new File(target, "lib-1.0").exists());
+    }
+
+    @Test
+    public void keepsLibraryDirectory() throws Exception {
+        File zip = zip("vars/foo.groovy", "vars/bar.groovy");
+        File target = folder.newFolder();
+        LibraryArchive.extract(zip, target, LibraryArchive.Filter.ALL);
+        Assert.assertTrue(new File(target, "vars/foo.groovy").isFile());
+        Assert.assertTrue(new File(target, "vars/bar.groovy").isFile());
+    }
+
+    @Test
+    public void keepsSeveralTopLevelEntries() throws Exception {
+        File zip = zip("src/Foo.groovy", "version.txt");
+        File target = folder.newFolder();
+        LibraryArchive.extract(zip, target, LibraryArchive.Filter.ALL);
+        Assert.assertTrue(new File(target, "src/Foo.groovy").isFile());
+        Assert.assertTrue(new File(target, "version.txt").isFile());
+    }
+
+    @Test
+    public void replacesPreviousContent() throws Exception {
+        File target = folder.newFolder();
+        Files.write(new File(target, "old.groovy").toPath(), new byte[0]);
+        LibraryArchive.extract(zip("src/Foo.groovy"), target, LibraryArchive.Filter.ALL);
+        Assert.assertFalse(new File(target, "old.groovy").exists());
+    }
+
+    @Test
+    public void extractsOnlyLibraryFilesByDefault() throws Exception {
+        File zip = zip("lib/", "lib/src/Foo.groovy", "lib/vars/foo.groovy", "lib/docs/", "lib/docs/index.md",
+                "lib/pom.xml", "lib/version.txt");
+        File target = folder.newFolder();
+        LibraryArchive.extract(zip, target, LibraryArchive.Filter.of(null, null));
+        Assert.assertTrue(new File(target, "src/Foo.groovy").isFile());
+        Assert.assertTrue(new File(target, "vars/foo.groovy").isFile());
+        Assert.assertTrue(new File(target, "version.txt").isFile());
+        Assert.assertFalse(new File(target, "docs").exists());
+        Assert.assertFalse(new File(target, "pom.xml").exists());
+    }
+
+    @Test
+    public void extractsIncludedFilesThatAreNotExcluded() throws Exception {
+        File zip = zip("src/Foo.groovy", "src/FooTest.groovy", "vars/foo.groovy");
+        File target = folder.newFolder();
+        LibraryArchive.extract(zip, target, LibraryArchive.Filter.of("src/**", "**/*Test.groovy"));
+        Assert.assertTrue(new File(target, "src/Foo.groovy").isFile());
+        Assert.assertFalse(new File(target, "src/FooTest.groovy").exists());
+        Assert.assertFalse(new File(target, "vars").exists());
+    }
+
+    @Test
+    public void extractsLargeArchive() throws Exception {
+        String[] names = new String[500];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "lib/vars/dir" + (i % 10) + "/script" + i + ".groovy";
+        }
+        File target = folder.newFolder();
+        LibraryArchive.extract(zip(names), target, LibraryArchive.Filter.ALL);
+        for (int i = 0; i < names.length; i++) {
+            Assert.assertEquals("script" + i + ".groovy", read(new File(target, "vars/dir" + (i % 10) + "/script" + i + ".groovy")));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfContainsRefToParent() throws Exception {
+        LibraryArchive.extract(zip("src/../../evil.groovy"), folder.newFolder(), LibraryArchive.Filter.ALL);
+    }
+
+    @Test
+    public void failsIfNameIsAbsolute() throws Exception {
+        File outside = new File(folder.getRoot(), "outside.groovy");
+        try {
+            LibraryArchive.extract(zip(outside.getAbsolutePath().replace('\\', '/')), folder.newFolder(),
+                    LibraryArchive.Filter.of("/**", null));
+            Assert.fail("The absolute name should be rejected");
+        } catch (IOException e) {
+            Assert.assertFalse(outside.exists());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfNameHasDriveLetter() throws Exception {
+        LibraryArchive.extract(zip("C:/evil.groovy"), folder.newFolder(), LibraryArchive.Filter.ALL);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfNameHasBackslash() throws Exception {
+        LibraryArchive.extract(zip("src\\evil.groovy"), folder.newFolder(), LibraryArchive.Filter.ALL);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfTooManyEntries() throws Exception {
+        LibraryArchive.extract(zip("src/A.groovy", "src/B.groovy", "src/C.groovy"), folder.newFolder(),
+                LibraryArchive.Filter.ALL, new LibraryArchive.Limits(2, 0, 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfTooLarge() throws Exception {
+        LibraryArchive.extract(zip("src/A.groovy", "src/B.groovy"), folder.newFolder(),
+                LibraryArchive.Filter.ALL, new LibraryArchive.Limits(0, 12, 0));
+    }
+
+    @Test
+    public void ignoresSizeOfFilesNotExtracted() throws Exception {
+        File target = folder.newFolder();
+        LibraryArchive.extract(zip("src/A.groovy", "docs/B.groovy"), target,
+                LibraryArchive.Filter.of("src/**", null), new LibraryArchive.Limits(0, 12, 0));
+        Assert.assertTrue(new File(target, "src/A.groovy").isFile());
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfCompressedTooMuch() throws Exception {
+        File zip = folder.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("src/blob.bin"));
+            out.write(new byte[10 * 1024 * 1024]);
+            out.closeEntry();
+        }
+        LibraryArchive.extract(zip, folder.newFolder(), LibraryArchive.Filter.ALL, new LibraryArchive.Limits(0, 0, 100));
+    }
+
+    /**
+     * @return A zip of the given entries, the content of each file being its own name
+     */
+    File zip(String... names) throws IOException {
+        File zip = folder.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            for (String name : names) {
+                out.putNextEntry(new ZipEntry(name));
+                if (!name.endsWith("/")) {
+                    out.write(name.substring(name.lastIndexOf('/') + 1).getBytes(StandardCharsets.UTF_8));
+                }
+                out.closeEntry();
+            }
+        }
+        return zip;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class LibraryBulkheadTest {
+
+    @Test
+    public void isolatesHosts() throws Exception {
+        LibraryBulkhead repo = LibraryBulkhead.of(new URL("https://repo/a.zip"));
+        Assert.assertSame(repo, LibraryBulkhead.of(new URL("https://REPO:443/b.zip")));
+        Assert.assertNotSame(repo, LibraryBulkhead.of(new URL("https://partner/a.zip")));
+        Assert.assertNotSame(repo, LibraryBulkhead.of(new URL("http://repo/a.zip")));
+    }
+
+    @Test
+    public void limitsDownloadsInProgress() throws Exception {
+        LibraryBulkhead bulkhead = new LibraryBulkhead("repo:443", 1, 1, 100, 1);
+        try (LibraryBulkhead.Permit ignored = bulkhead.acquire()) {
+            try {
+                bulkhead.acquire();
+                Assert.fail("The download should not wait forever");
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("Timed out"));
+            }
+        }
+        bulkhead.acquire().close();
+    }
+
+    @Test(timeout = 10000)
+    public void limitsDownloadsWaiting() throws Exception {
+        LibraryBulkhead bulkhead = new LibraryBulkhead("repo:443", 1, 1, TimeUnit.MINUTES.toMillis(1), 1);
+        try (LibraryBulkhead.Permit ignored = bulkhead.acquire()) {
+            Thread waiter = new Thread(() -> {
+                try {
+                    bulkhead.acquire().close();
+                } catch (IOException | InterruptedException e) {
+                    // Expected once interrupted
+                }
+            });
+            waiter.start();
+            while (bulkhead.getWaiting() == 0) {
+                Thread.yield();
+            }
+            try {
+                bulkhead.acquire();
+                Assert.fail("The download should not be queued");
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("Too many downloads waiting"));
+            } finally {
+                waiter.interrupt();
+                waiter.join();
+            }
+        }
+    }
+
+    @Test
+    public void limitsBackgroundDownloadsQueued() throws Exception {
+        LibraryBulkhead bulkhead = new LibraryBulkhead("repo:443", 1, 1, 100, 1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        bulkhead.execute(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        running.await();
+        bulkhead.execute(() -> { });
+        try {
+            bulkhead.execute(() -> { });
+            Assert.fail("The background download should not be queued");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        } finally {
+            release.countDown();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import hudson.FilePath;
+import hudson.cli.CLICommandInvoker;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.libs.GlobalLibraries;
+import org.jenkinsci.plugins.workflow.libs.LibraryConfiguration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class LibraryBundleTest {
+
+    private static final String RSC_FILE = "http-lib-retriever-tests.zip";
+
+    private static final String URL = "http://repo/foo-1.0.zip";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.ADMINISTER).everywhere().to("admin")
+                .grant(Jenkins.READ).everywhere().to("user"));
+        GlobalLibraries.get().getLibraries().add(new LibraryConfiguration("foo",
+                new HttpRetriever("http://repo/foo-${library.foo.version}.zip", "", false)));
+    }
+
+    @Test
+    public void importsZip() throws Exception {
+        List<String> report = LibraryBundle.importBundle(new ByteArrayInputStream(zip()));
+
+        Assert.assertEquals(1, report.size());
+        Assert.assertTrue(report.get(0), report.get(0).startsWith("Imported foo@1.0"));
+        Assert.assertNotNull(LibraryCache.get().get(HttpRetriever.keyOf(URL, null)));
+    }
+
+    @Test
+    public void importsTarballWrappedInDirectory() throws Exception {
+        File dir = bundle();
+        ByteArrayOutputStream tarball = new ByteArrayOutputStream();
+        try (OutputStream out = FilePath.TarCompression.GZIP.compress(tarball)) {
+            new FilePath(dir.getParentFile()).tar(out, dir.getName() + "/**/*");
+        }
+
+        List<String> report = LibraryBundle.importBundle(new ByteArrayInputStream(tarball.toByteArray()));
+
+        Assert.assertTrue(report.get(0), report.get(0).startsWith("Imported foo@1.0"));
+        Assert.assertEquals("foo", LibraryCache.get().get(HttpRetriever.keyOf(URL, null)).getLibrary());
+    }
+
+    @Test
+    public void importsWithCli() throws Exception {
+        CLICommandInvoker.Result result = new CLICommandInvoker(j, LibraryBundle.CLI_COMMAND)
+                .asUser("admin")
+                .withStdin(new ByteArrayInputStream(zip()))
+                .invoke();
+
+        Assert.assertEquals(result.stderr(), 0, result.returnCode());
+        Assert.assertTrue(result.stdout(), result.stdout().contains("Imported foo@1.0"));
+        Assert.assertNotNull(LibraryCache.get().get(HttpRetriever.keyOf(URL, null)));
+    }
+
+    @Test
+    public void requiresAdministerToImportWithCli() throws Exception {
+        CLICommandInvoker.Result result = new CLICommandInvoker(j, LibraryBundle.CLI_COMMAND)
+                .asUser("user")
+                .withStdin(new ByteArrayInputStream(zip()))
+                .invoke();
+
+        Assert.assertNotEquals(0, result.returnCode());
+        Assert.assertNull(LibraryCache.get().get(HttpRetriever.keyOf(URL, null)));
+    }
+
+    /**
+     * @return A bundle with the test archive as version 1.0 of the library
+     */
+    private File bundle() throws Exception {
+        File dir = folder.newFolder("bundle");
+        Files.copy(Objects.requireNonNull(ClassLoader.getSystemResourceAsStream(RSC_FILE)),
+                new File(dir, "foo-1.0.zip").toPath());
+        Files.write(new File(dir, LibraryBundle.MANIFEST).toPath(),
+                "{\"libraries\": [{\"name\": \"foo\", \"version\": \"1.0\", \"file\": \"foo-1.0.zip\"}]}"
+                        .getBytes(StandardCharsets.UTF_8));
+        return dir;
+    }
+
+    private byte[] zip() throws Exception {
+        File dir = bundle();
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(zip)) {
+            for (String name : new String[] {LibraryBundle.MANIFEST, "foo-1.0.zip"}) {
+                out.putNextEntry(new ZipEntry(name));
+                Files.copy(new File(dir, name).toPath(), out);
+                out.closeEntry();
+            }
+        }
+        return zip.toByteArray();
+    }
+}
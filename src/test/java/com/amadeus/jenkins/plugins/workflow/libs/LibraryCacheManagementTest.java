@@ -0,0 +1,205 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.workflow.libs.GlobalLibraries;
+import org.jenkinsci.plugins.workflow.libs.LibraryConfiguration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+public class LibraryCacheManagementTest {
+
+    private static final String RSC_FILE = "http-lib-retriever-tests.zip";
+
+    private static final String PAGE = "manage/http-shared-libraries-cache/";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public WireMockRule wireMock = new WireMockRule(WireMockConfiguration.options().dynamicPort());
+
+    @Before
+    public void setUp() {
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.ADMINISTER).everywhere().to("admin")
+                .grant(Jenkins.READ).everywhere().to("user"));
+    }
+
+    @Test
+    public void requiresAdministerToSeeCache() throws Exception {
+        cache("foo", "1.0", RSC_FILE);
+        JenkinsRule.WebClient webClient = j.createWebClient().login("user");
+
+        webClient.assertFails(PAGE, HttpURLConnection.HTTP_FORBIDDEN);
+        webClient.assertFails(PAGE + "api/json", HttpURLConnection.HTTP_FORBIDDEN);
+        Assert.assertEquals(HttpURLConnection.HTTP_FORBIDDEN, post(webClient, "purge?olderThan=0"));
+        Assert.assertEquals(HttpURLConnection.HTTP_FORBIDDEN, post(webClient, "rewarm"));
+        Assert.assertEquals(1, LibraryCache.get().getEntries().size());
+
+        String page = j.createWebClient().login("admin").goTo(PAGE).getWebResponse().getContentAsString();
+        Assert.assertTrue(page, page.contains("foo"));
+    }
+
+    @Test
+    public void exportsEntries() throws Exception {
+        String key = cache("foo", "1.0", RSC_FILE);
+        LibraryCache.get().recordAccess(key);
+
+        String json = j.createWebClient().login("admin").goTo(PAGE + "api/json", "application/json")
+                .getWebResponse().getContentAsString();
+
+        JSONArray entries = JSONObject.fromObject(json).getJSONArray("entries");
+        Assert.assertEquals(1, entries.size());
+        JSONObject entry = entries.getJSONObject(0);
+        Assert.assertEquals("foo", entry.getString("library"));
+        Assert.assertEquals("1.0", entry.getString("version"));
+        Assert.assertEquals("http://repo/foo-1.0.zip", entry.getString("url"));
+        Assert.assertEquals("\"etag\"", entry.getString("etag"));
+        Assert.assertEquals(LibraryCache.get().get(key).getSize(), entry.getLong("size"));
+        Assert.assertEquals(1, entry.getLong("hits"));
+        Assert.assertTrue(entry.getLong("lastAccess") > 0);
+    }
+
+    @Test
+    public void purgesOnlyWithPost() throws Exception {
+        cache("foo", "1.0", RSC_FILE);
+        JenkinsRule.WebClient webClient = j.createWebClient().login("admin");
+
+        webClient.assertFails(PAGE + "purge?library=foo", HttpURLConnection.HTTP_BAD_METHOD);
+        webClient.assertFails(PAGE + "rewarm?library=foo", HttpURLConnection.HTTP_BAD_METHOD);
+
+        Assert.assertEquals(1, LibraryCache.get().getEntries().size());
+    }
+
+    @Test
+    public void rejectsPurgeWithoutValidCriteria() throws Exception {
+        cache("foo", "1.0", RSC_FILE);
+        JenkinsRule.WebClient webClient = j.createWebClient().login("admin");
+
+        Assert.assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, post(webClient, "purge"));
+        Assert.assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, post(webClient, "purge?library=+&version="));
+        Assert.assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, post(webClient, "purge?olderThan=week"));
+
+        Assert.assertEquals(1, LibraryCache.get().getEntries().size());
+    }
+
+    @Test
+    public void purgesMatchingEntries() throws Exception {
+        cache("foo", "1.0", RSC_FILE);
+        cache("foo", "2.0", "http-lib-retriever-tests-no-version.zip");
+        cache("bar", "1.0", RSC_FILE);
+        JenkinsRule.WebClient webClient = j.createWebClient().login("admin");
+
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, post(webClient, "purge?library=foo&version=2.0"));
+
+        Assert.assertEquals(2, LibraryCache.get().getEntries().size());
+        Assert.assertTrue(LibraryCache.get().getEntries().stream()
+                .noneMatch(entry -> entry.getVersion().equals("2.0")));
+        // The files of the purged archive only
+        Assert.assertEquals(1, countFiles("store/manifests"));
+    }
+
+    @Test
+    public void purgesWholeCacheAndStore() throws Exception {
+        cache("foo", "1.0", RSC_FILE);
+        cache("bar", "1.0", "http-lib-retriever-tests-no-version.zip");
+        Assert.assertTrue(countFiles("store/objects") > 0);
+        JenkinsRule.WebClient webClient = j.createWebClient().login("admin");
+
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, post(webClient, "purge?olderThan=0"));
+
+        Assert.assertTrue(LibraryCache.get().getEntries().isEmpty());
+        Assert.assertEquals(0, countFiles("store/manifests"));
+        Assert.assertEquals(0, countFiles("store/objects"));
+    }
+
+    @Test
+    public void requiresAdministerToImport() throws Exception {
+        Assert.assertEquals(HttpURLConnection.HTTP_FORBIDDEN, post(j.createWebClient().login("user"), "import"));
+        // Past the permission check, an empty body is not a bundle
+        Assert.assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, post(j.createWebClient().login("admin"), "import"));
+
+        Assert.assertTrue(LibraryCache.get().getEntries().isEmpty());
+    }
+
+    @Test
+    public void rewarmsLibraryVersion() throws Exception {
+        wireMock.stubFor(WireMock.get(WireMock.urlEqualTo("/foo-1.0.zip"))
+                .willReturn(WireMock.aResponse().withBody(IOUtils.toByteArray(
+                        Objects.requireNonNull(ClassLoader.getSystemResourceAsStream(RSC_FILE))))));
+        GlobalLibraries.get().getLibraries().add(new LibraryConfiguration("foo",
+                new HttpRetriever(wireMock.url("foo-${library.foo.version}.zip"), "", false)));
+        JenkinsRule.WebClient webClient = j.createWebClient().login("admin");
+
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, post(webClient, "rewarm?library=foo&version=1.0"));
+
+        String key = HttpRetriever.keyOf(wireMock.url("foo-1.0.zip"), null);
+        for (int i = 0; i < 100 && LibraryCache.get().get(key) == null; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertNotNull(LibraryCache.get().get(key));
+    }
+
+    /**
+     * Caches and extracts an archive, as a build would
+     *
+     * @return The key of the archive in the cache
+     */
+    private static String cache(String library, String version, String resource) throws Exception {
+        LibraryCache cache = LibraryCache.get();
+        String url = "http://repo/" + library + "-" + version + ".zip";
+        String key = HttpRetriever.keyOf(url, null);
+        try (LibraryCache.Handle archive = cache.open(key, false, cached -> {
+            File download = cache.createTempFile();
+            Files.copy(Objects.requireNonNull(ClassLoader.getSystemResourceAsStream(resource)), download.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            return cache.publish(key, url, library, version, download, "\"etag\"", null);
+        })) {
+            cache.getStore().add(archive, LibraryArchive.Filter.of(null, null));
+        }
+        return key;
+    }
+
+    /**
+     * @return The status code of the response, once the redirections are followed
+     */
+    private int post(JenkinsRule.WebClient webClient, String action) throws Exception {
+        webClient.setThrowExceptionOnFailingStatusCode(false);
+        WebRequest request = new WebRequest(new URL(j.getURL(), PAGE + action), HttpMethod.POST);
+        Page page = webClient.getPage(webClient.addCrumb(request));
+        return page.getWebResponse().getStatusCode();
+    }
+
+    private static long countFiles(String dir) throws Exception {
+        Path path = new File(LibraryCache.get().getRoot(), dir).toPath();
+        if (!Files.isDirectory(path)) {
+            return 0;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            return paths.filter(Files::isRegularFile).count();
+        }
+    }
+}
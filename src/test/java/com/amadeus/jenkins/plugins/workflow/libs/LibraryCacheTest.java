@@ -0,0 +1,211 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class LibraryCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Two controllers sharing the same cache directory
+     */
+    private LibraryCache controller1;
+    private LibraryCache controller2;
+
+    @Before
+    public void setUp() throws IOException {
+        File root = folder.newFolder();
+        controller1 = new LibraryCache(root, true);
+        controller2 = new LibraryCache(root, true);
+    }
+
+    @Test
+    public void picksUpEntriesPublishedByAnotherController() throws Exception {
+        Assert.assertNull(controller2.get("key"));
+        publish(controller1, "key", "\"v1\"");
+        try (LibraryCache.Handle handle = controller2.open("key")) {
+            Assert.assertNotNull(handle);
+            Assert.assertEquals("\"v1\"", handle.getEntry().getETag());
+            Assert.assertEquals("\"v1\"", read(handle.getArchive()));
+        }
+        Assert.assertEquals(1, controller2.getEntries().size());
+    }
+
+    @Test
+    public void revalidatesArchiveDownloadedByAnotherController() throws Exception {
+        publish(controller1, "key", "\"v1\"");
+        try (LibraryCache.Handle handle = controller2.open("key", false, cached -> {
+            Assert.assertNotNull(cached);
+            return controller2.revalidated(cached);
+        })) {
+            Assert.assertEquals("\"v1\"", read(handle.getArchive()));
+        }
+        Assert.assertEquals(controller2.get("key").getFetched(), controller1.get("key").getFetched());
+    }
+
+    @Test
+    public void seesEntriesUpdatedOrRemovedByAnotherController() throws Exception {
+        publish(controller1, "key", "\"v1\"");
+        Assert.assertEquals("\"v1\"", controller2.get("key").getETag());
+        publish(controller1, "key", "\"v2\"");
+        Assert.assertEquals("\"v2\"", controller2.get("key").getETag());
+        controller1.invalidate("key");
+        Assert.assertNull(controller2.get("key"));
+        Assert.assertTrue(controller2.getEntries().isEmpty());
+    }
+
+    @Test
+    public void purgesMatchingEntries() throws Exception {
+        publish(controller1, "a1", "lib-a", "1.0", "\"a1\"");
+        publish(controller1, "a2", "lib-a", "2.0", "\"a2\"");
+        publish(controller1, "b1", "lib-b", "1.0", "\"b1\"");
+        controller1.recordAccess("a1");
+        controller1.recordAccess("a1");
+
+        Assert.assertEquals(2, controller1.getUsage("a1").getHits());
+        Assert.assertEquals(1, controller1.purge(entry -> "1.0".equals(entry.getVersion())
+                && "lib-a".equals(entry.getLibrary())).size());
+        Assert.assertNull(controller1.get("a1"));
+        Assert.assertNull(controller1.getUsage("a1"));
+        Assert.assertNotNull(controller1.get("a2"));
+        Assert.assertNotNull(controller1.get("b1"));
+        Assert.assertEquals("lib-b", controller2.get("b1").getLibrary());
+    }
+
+    @Test
+    public void reloadsEntriesFromIndex() throws Exception {
+        File root = folder.newFolder();
+        LibraryCache cache = new LibraryCache(root);
+        publish(cache, "a", "\"a\tb\\c\"");
+        publish(cache, "b", "\"b\"");
+        cache.invalidate("b");
+        cache.recordAccess("a");
+
+        LibraryCache restarted = new LibraryCache(root);
+        Assert.assertEquals("\"a\tb\\c\"", restarted.get("a").getETag());
+        Assert.assertEquals(cache.get("a").getDigest(), restarted.get("a").getDigest());
+        Assert.assertNull(restarted.get("b"));
+        Assert.assertEquals(cache.getUsage("a").getLastAccess(), restarted.getUsage("a").getLastAccess());
+        Assert.assertEquals(0, restarted.getUsage("a").getHits());
+        Assert.assertEquals(0, root.list((dir, name) -> name.endsWith(".properties")).length);
+    }
+
+    @Test
+    public void buildsIndexFromMetadataFiles() throws Exception {
+        File root = folder.newFolder();
+        publish(new LibraryCache(root, true), "key", "\"v1\"");
+        Assert.assertEquals(1, root.list((dir, name) -> name.endsWith(".properties")).length);
+
+        LibraryCache cache = new LibraryCache(root);
+        Assert.assertEquals("\"v1\"", cache.get("key").getETag());
+        Assert.assertEquals(0, root.list((dir, name) -> name.endsWith(".properties")).length);
+        Assert.assertEquals("\"v1\"", new LibraryCache(root).get("key").getETag());
+    }
+
+    @Test
+    public void ignoresCorruptedEndOfIndex() throws Exception {
+        File root = folder.newFolder();
+        publish(new LibraryCache(root), "a", "\"a\"");
+        Files.write(new File(root, "index.log").toPath(), "P\tb\thttp://exa".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        LibraryCache cache = new LibraryCache(root);
+        Assert.assertEquals("\"a\"", cache.get("a").getETag());
+        Assert.assertNull(cache.get("b"));
+        publish(cache, "b", "\"b\"");
+
+        LibraryCache restarted = new LibraryCache(root);
+        Assert.assertEquals("\"a\"", restarted.get("a").getETag());
+        Assert.assertEquals("\"b\"", restarted.get("b").getETag());
+    }
+
+    @Test
+    public void stopsReplayingIndexAtFirstCorruptedLine() throws Exception {
+        File root = folder.newFolder();
+        LibraryCache cache = new LibraryCache(root);
+        publish(cache, "a", "\"a\"");
+        publish(cache, "b", "\"b\"");
+        publish(cache, "c", "\"c\"");
+        Path index = new File(root, "index.log").toPath();
+        String log = new String(Files.readAllBytes(index), StandardCharsets.UTF_8);
+        Assert.assertTrue(log, log.contains("\"b\""));
+        // Same length, so only the CRC of the line tells it was corrupted
+        Files.write(index, log.replace("\"b\"", "\"x\"").getBytes(StandardCharsets.UTF_8));
+
+        LibraryCache restarted = new LibraryCache(root);
+        Assert.assertEquals("\"a\"", restarted.get("a").getETag());
+        Assert.assertNull(restarted.get("b"));
+        Assert.assertNull(restarted.get("c"));
+    }
+
+    @Test
+    public void deletesArchivesNotIndexed() throws Exception {
+        File root = folder.newFolder();
+        LibraryCache cache = new LibraryCache(root);
+        publish(cache, "a", "\"a\"");
+        publish(cache, "a", "\"a2\"");
+        // Moved into the cache by a previous run that crashed before indexing it
+        Files.write(new File(root, "b.zip").toPath(), "b".getBytes(StandardCharsets.UTF_8));
+
+        LibraryCache restarted = new LibraryCache(root);
+        Assert.assertEquals("\"a2\"", restarted.get("a").getETag());
+        Assert.assertNull(restarted.get("b"));
+        Assert.assertTrue(new File(root, "a.zip").isFile());
+        Assert.assertFalse(new File(root, "b.zip").exists());
+    }
+
+    @Test
+    public void forgetsLocksOfEntriesNoLongerUsed() throws Exception {
+        publish(controller1, "a", "\"a\"");
+        try (LibraryCache.Handle handle = controller1.open("a");
+             LibraryCache.Handle other = controller1.open("a")) {
+            Assert.assertNotNull(handle);
+            Assert.assertNotNull(other);
+            Assert.assertEquals(1, controller1.getLockCount());
+        }
+        Assert.assertNull(controller1.open("missing"));
+        controller1.invalidate("a");
+        Assert.assertEquals(0, controller1.getLockCount());
+    }
+
+    @Test
+    public void compactsIndex() throws Exception {
+        File root = folder.newFolder();
+        LibraryCache cache = new LibraryCache(root);
+        publish(cache, "a", "\"a\"");
+        for (int i = 0; i < 3000; i++) {
+            cache.revalidated(cache.get("a"));
+        }
+        Assert.assertTrue(Files.readAllLines(new File(root, "index.log").toPath()).size() <= 1001);
+        Assert.assertEquals(cache.get("a").getFetched(), new LibraryCache(root).get("a").getFetched());
+    }
+
+    private static void publish(LibraryCache cache, String key, String etag) throws Exception {
+        publish(cache, key, "lib", "1.0", etag);
+    }
+
+    private static void publish(LibraryCache cache, String key, String library, String version, String etag)
+            throws Exception {
+        cache.open(key, false, cached -> {
+            File download = cache.createTempFile();
+            Files.write(download.toPath(), etag.getBytes(StandardCharsets.UTF_8));
+            return cache.publish(key, "http://example.com/" + key + ".zip", library, version, download, etag, null);
+        }).close();
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
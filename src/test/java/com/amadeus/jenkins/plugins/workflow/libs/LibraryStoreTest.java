@@ -0,0 +1,254 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class LibraryStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LibraryCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        cache = new LibraryCache(folder.newFolder());
+    }
+
+    @Test
+    public void storesSharedFilesOnce() throws Exception {
+        Path v1 = materialize("v1", "src/Foo.groovy", "foo", "vars/bar.groovy", "bar", "version.txt", "1.0");
+        Path v2 = materialize("v2", "src/Foo.groovy", "foo", "vars/bar.groovy", "bar", "version.txt", "2.0");
+
+        Assert.assertEquals("1.0", read(v1.resolve("version.txt")));
+        Assert.assertEquals("2.0", read(v2.resolve("version.txt")));
+        Assert.assertEquals("foo", read(v2.resolve("src/Foo.groovy")));
+        Assert.assertEquals(4, countObjects());
+    }
+
+    @Test
+    public void materializesWritableCopies() throws Exception {
+        Path v1 = materialize("v1", "src/Foo.groovy", "foo");
+        Path v2 = materialize("v2", "src/Foo.groovy", "foo");
+
+        Files.write(v1.resolve("src/Foo.groovy"), "changed".getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertEquals("foo", read(v2.resolve("src/Foo.groovy")));
+        try (LibraryCache.Handle archive = cache.open("v2")) {
+            Path target = folder.newFolder().toPath();
+            cache.getStore().add(archive, LibraryArchive.Filter.ALL).materialize(target, "source");
+            Assert.assertEquals("foo", read(target.resolve("src/Foo.groovy")));
+        }
+    }
+
+    @Test
+    public void prunesFilesOfPurgedArchives() throws Exception {
+        materialize("v1", "src/Foo.groovy", "foo", "version.txt", "1.0");
+        materialize("v2", "src/Foo.groovy", "foo", "version.txt", "2.0");
+        Assert.assertEquals(3, countObjects());
+
+        cache.purge(entry -> entry.getKey().equals("v1"));
+
+        Assert.assertEquals(2, countObjects());
+        Assert.assertEquals(1, new File(cache.getRoot(), "store/manifests").list().length);
+        try (LibraryCache.Handle archive = cache.open("v2")) {
+            Path target = folder.newFolder().toPath();
+            cache.getStore().add(archive, LibraryArchive.Filter.ALL).materialize(target, "source");
+            Assert.assertEquals("2.0", read(target.resolve("version.txt")));
+        }
+    }
+
+    private long countObjects() throws IOException {
+        try (Stream<Path> objects = Files.walk(new File(cache.getRoot(), "store/objects").toPath())) {
+            return objects.filter(Files::isRegularFile).count();
+        }
+    }
+
+    @Test
+    public void reusesManifestOfExtractedArchive() throws Exception {
+        materialize("v1", "src/Foo.groovy", "foo");
+        try (LibraryCache.Handle archive = cache.open("v1")) {
+            Path target = folder.newFolder().toPath();
+            cache.getStore().add(archive, LibraryArchive.Filter.ALL).materialize(target, "source");
+            Assert.assertEquals("foo", read(target.resolve("src/Foo.groovy")));
+        }
+        Assert.assertEquals(1, new File(cache.getRoot(), "store/manifests").list().length);
+    }
+
+    @Test
+    public void downloadsOnlyMissingListedFiles() throws Exception {
+        materialize("v1", "src/Foo.groovy", "foo", "vars/bar.groovy", "bar");
+        Map<String, String> published = new HashMap<>();
+        published.put("src/Foo.groovy", "foo");
+        published.put("vars/bar.groovy", "bar2");
+        List<String> downloaded = new ArrayList<>();
+        Path target = folder.newFolder().toPath();
+
+        try (LibraryCache.Handle sums = publishSums("v2", published)) {
+            cache.getStore().add(sums, LibraryArchive.Filter.ALL, files -> {
+                for (Map.Entry<String, File> file : files.entrySet()) {
+                    downloaded.add(file.getKey());
+                    Files.write(file.getValue().toPath(), published.get(file.getKey()).getBytes(StandardCharsets.UTF_8));
+                }
+            }).materialize(target, "source");
+        }
+
+        Assert.assertEquals(Collections.singletonList("vars/bar.groovy"), downloaded);
+        Assert.assertEquals("foo", read(target.resolve("src/Foo.groovy")));
+        Assert.assertEquals("bar2", read(target.resolve("vars/bar.groovy")));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfListedFileDoesNotMatch() throws Exception {
+        try (LibraryCache.Handle sums = publishSums("v1", Collections.singletonMap("src/Foo.groovy", "foo"))) {
+            cache.getStore().add(sums, LibraryArchive.Filter.ALL, files -> {
+                for (File file : files.values()) {
+                    Files.write(file.toPath(), "tampered".getBytes(StandardCharsets.UTF_8));
+                }
+            });
+        }
+    }
+
+    @Test
+    public void failsIfListedFileIsOutsideOfLibrary() throws Exception {
+        File outside = new File(folder.getRoot(), "outside.groovy");
+        String name = outside.getAbsolutePath().replace('\\', '/');
+        try (LibraryCache.Handle sums = publishSums("v1", Collections.singletonMap(name, "evil"))) {
+            cache.getStore().add(sums, LibraryArchive.Filter.of("**", null),
+                    files -> Assert.fail("Nothing to download"));
+            Assert.fail("The absolute name should be rejected");
+        } catch (IOException e) {
+            Assert.assertFalse(outside.exists());
+        }
+    }
+
+    @Test
+    public void failsIfManifestIsTampered() throws Exception {
+        materialize("v1", "src/Foo.groovy", "foo");
+        File manifest = new File(cache.getRoot(), "store/manifests").listFiles()[0];
+        File outside = new File(folder.getRoot(), "outside.groovy");
+        Files.write(manifest.toPath(), ("F " + DigestUtils.sha256Hex("foo") + " "
+                + outside.getAbsolutePath().replace('\\', '/') + "\n").getBytes(StandardCharsets.UTF_8));
+        try (LibraryCache.Handle archive = cache.open("v1")) {
+            cache.getStore().add(archive, LibraryArchive.Filter.ALL).materialize(folder.newFolder().toPath(), "source");
+            Assert.fail("The tampered manifest should be rejected");
+        } catch (IOException e) {
+            Assert.assertFalse(outside.exists());
+        }
+    }
+
+    @Test
+    public void recognizesMaterializedLibrary() throws Exception {
+        Path target = materialize("v1", "src/Foo.groovy", "foo", "vars/bar.groovy", "bar");
+        Assert.assertTrue(cache.getStore().isMaterialized(target, "source"));
+        Assert.assertFalse(cache.getStore().isMaterialized(target, "other source"));
+
+        Files.delete(target.resolve("vars/bar.groovy"));
+        Assert.assertFalse(cache.getStore().isMaterialized(target, "source"));
+    }
+
+    @Test
+    public void noticesChangedFileOfMaterializedLibrary() throws Exception {
+        Path target = materialize("v1", "src/Foo.groovy", "foo");
+        Files.write(target.resolve("src/Foo.groovy"), "bar".getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(cache.getStore().isMaterialized(target, "source"));
+    }
+
+    @Test
+    public void trustsFilesOfMaterializedLibraryWithSameSizeAndModificationTime() throws Exception {
+        Path target = materialize("v1", "src/Foo.groovy", "foo");
+        Path file = target.resolve("src/Foo.groovy");
+        FileTime modified = Files.getLastModifiedTime(file);
+        Files.write(file, "bar".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, modified);
+        Assert.assertTrue(cache.getStore().isMaterialized(target, "source"));
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() + 1000));
+        Assert.assertFalse(cache.getStore().isMaterialized(target, "source"));
+    }
+
+    @Test
+    public void materializesLibraryKeptInMemory() throws Exception {
+        LibraryTreeCache trees = new LibraryTreeCache(1024 * 1024, 1024 * 1024);
+        cache = new LibraryCache(folder.newFolder()) {
+            @Override
+            LibraryTreeCache getTrees() {
+                return trees;
+            }
+        };
+        Path v1 = materialize("v1", "src/Foo.groovy", "foo");
+        Assert.assertTrue(trees.getSize() > 0);
+
+        try (LibraryCache.Handle archive = cache.open("v1");
+             Stream<Path> objects = Files.walk(new File(cache.getRoot(), "store/objects").toPath())) {
+            // Written from memory, so the stored files are not read anymore
+            for (Path object : (Iterable<Path>) objects.filter(Files::isRegularFile)::iterator) {
+                object.toFile().setWritable(true);
+                Files.write(object, "corrupted".getBytes(StandardCharsets.UTF_8));
+            }
+            Path target = folder.newFolder().toPath();
+            cache.getStore().add(archive, LibraryArchive.Filter.ALL).materialize(target, "source");
+            Assert.assertEquals("foo", read(target.resolve("src/Foo.groovy")));
+            Assert.assertTrue(cache.getStore().isMaterialized(target, "source"));
+        }
+        Assert.assertTrue(cache.getStore().isMaterialized(v1, "source"));
+    }
+
+    /**
+     * Publishes the list of the given files, with the SHA-256 of their contents
+     */
+    private LibraryCache.Handle publishSums(String key, Map<String, String> files) throws Exception {
+        File list = cache.createTempFile();
+        StringBuilder sums = new StringBuilder();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            sums.append(DigestUtils.sha256Hex(file.getValue())).append("  ./").append(file.getKey()).append('\n');
+        }
+        Files.write(list.toPath(), sums.toString().getBytes(StandardCharsets.UTF_8));
+        return cache.open(key, false,
+                cached -> cache.publish(key, "https://repo/" + key + "/SHA256SUMS", null, null, list, null, null));
+    }
+
+    /**
+     * Publishes an archive of the given files and contents, then materializes it in a new directory
+     */
+    private Path materialize(String key, String... files) throws Exception {
+        File zip = cache.createTempFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            for (int i = 0; i < files.length; i += 2) {
+                out.putNextEntry(new ZipEntry(files[i]));
+                out.write(files[i + 1].getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        Path target = folder.newFolder().toPath();
+        try (LibraryCache.Handle archive = cache.open(key, false,
+                cached -> cache.publish(key, "https://repo/" + key + ".zip", null, null, zip, null, null))) {
+            cache.getStore().add(archive, LibraryArchive.Filter.ALL).materialize(target, "source");
+        }
+        return target;
+    }
+
+    private static String read(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+}
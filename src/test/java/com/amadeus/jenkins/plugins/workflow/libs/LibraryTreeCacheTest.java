@@ -0,0 +1,95 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+public class LibraryTreeCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> files = Arrays.asList("src/Foo.groovy", "vars/bar.groovy");
+
+    @Test
+    public void writesLibraryFromMemory() throws Exception {
+        LibraryTreeCache trees = new LibraryTreeCache(1024 * 1024, 1024);
+        Path dir = extracted();
+        Assert.assertFalse(trees.copyTo("key", folder.newFolder().toPath()));
+
+        Assert.assertTrue(trees.add("key", dir, files));
+        Files.delete(dir.resolve("src/Foo.groovy"));
+        Path target = folder.newFolder().toPath();
+
+        Assert.assertTrue(trees.copyTo("key", target));
+        Assert.assertEquals("foo", new String(Files.readAllBytes(target.resolve("src/Foo.groovy")),
+                StandardCharsets.UTF_8));
+        Assert.assertEquals("bar", new String(Files.readAllBytes(target.resolve("vars/bar.groovy")),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void keepsOnlyFilesOfLibrary() throws Exception {
+        LibraryTreeCache trees = new LibraryTreeCache(1024 * 1024, 1024);
+        Path dir = extracted();
+        Files.write(dir.resolve("leftover.txt"), "leftover".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(trees.add("key", dir, files));
+
+        Path target = folder.newFolder().toPath();
+        Assert.assertTrue(trees.copyTo("key", target));
+        Assert.assertTrue(Files.isRegularFile(target.resolve("src/Foo.groovy")));
+        Assert.assertFalse(Files.exists(target.resolve("leftover.txt")));
+    }
+
+    @Test
+    public void doesNotKeepLargeLibrary() throws Exception {
+        LibraryTreeCache trees = new LibraryTreeCache(1024 * 1024, 5);
+
+        Assert.assertFalse(trees.add("key", extracted(), files));
+        Assert.assertFalse(trees.copyTo("key", folder.newFolder().toPath()));
+    }
+
+    @Test
+    public void evictsLibrariesBeyondMaximumSize() throws Exception {
+        Path dir = extracted();
+        LibraryTreeCache measured = new LibraryTreeCache(1024 * 1024, 1024);
+        Assert.assertTrue(measured.add("key", dir, files));
+        // Room for one library only
+        long maxSize = measured.getSize() * 3 / 2;
+        LibraryTreeCache trees = new LibraryTreeCache(maxSize, 1024);
+
+        Assert.assertTrue(trees.add("key1", dir, files));
+        Assert.assertTrue(trees.add("key2", dir, files));
+        trees.cleanUp();
+
+        Assert.assertTrue(trees.getSize() <= maxSize);
+        int kept = 0;
+        for (String key : new String[] {"key1", "key2"}) {
+            if (trees.copyTo(key, folder.newFolder().toPath())) {
+                kept++;
+            }
+        }
+        Assert.assertEquals(1, kept);
+    }
+
+    @Test
+    public void isDisabledWithoutSize() throws Exception {
+        Assert.assertFalse(new LibraryTreeCache(0, 1024).add("key", extracted(), files));
+    }
+
+    private Path extracted() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Files.createDirectories(dir.resolve("src"));
+        Files.createDirectories(dir.resolve("vars"));
+        Files.write(dir.resolve("src/Foo.groovy"), "foo".getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("vars/bar.groovy"), "bar".getBytes(StandardCharsets.UTF_8));
+        return dir;
+    }
+}
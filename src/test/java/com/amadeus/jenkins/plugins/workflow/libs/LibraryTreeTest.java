@@ -0,0 +1,77 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class LibraryTreeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void copiesFiles() throws Exception {
+        Path source = folder.newFolder().toPath();
+        Path target = folder.newFolder().toPath();
+        Map<Path, Path> files = new LinkedHashMap<>();
+        for (int i = 0; i < 200; i++) {
+            Path file = source.resolve("script" + i + ".groovy");
+            Files.write(file, ("script" + i).getBytes(StandardCharsets.UTF_8));
+            files.put(file, target.resolve("script" + i + ".groovy"));
+        }
+        Files.write(target.resolve("script0.groovy"), "previous".getBytes(StandardCharsets.UTF_8));
+
+        LibraryTree.copy(files);
+
+        for (Map.Entry<Path, Path> file : files.entrySet()) {
+            Assert.assertArrayEquals(Files.readAllBytes(file.getKey()), Files.readAllBytes(file.getValue()));
+            Assert.assertFalse(Files.isSameFile(file.getKey(), file.getValue()));
+        }
+    }
+
+    @Test
+    public void copiesLargeFile() throws Exception {
+        Path source = folder.newFolder().toPath().resolve("large.bin");
+        byte[] large = new byte[3 * 1024 * 1024 + 1];
+        large[large.length - 1] = 42;
+        Files.write(source, large);
+        Path target = folder.newFolder().toPath().resolve("large.bin");
+        Files.write(target, new byte[5 * 1024 * 1024]);
+
+        LibraryTree.copy(Collections.singletonMap(source, target));
+
+        Assert.assertArrayEquals(large, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void copiesReadOnlyFileAsWritable() throws Exception {
+        Path source = folder.newFolder().toPath().resolve("Foo.groovy");
+        Files.write(source, "foo".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(source.toFile().setReadOnly());
+        Path target = folder.newFolder().toPath().resolve("Foo.groovy");
+
+        LibraryTree.copy(Collections.singletonMap(source, target));
+
+        Files.write(target, "changed".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals("foo", new String(Files.readAllBytes(source), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void linksFilesIfEnabled() throws Exception {
+        Path source = folder.newFolder().toPath().resolve("Foo.groovy");
+        Files.write(source, "foo".getBytes(StandardCharsets.UTF_8));
+        Path target = folder.newFolder().toPath().resolve("Foo.groovy");
+
+        LibraryTree.copy(Collections.singletonMap(source, target), true);
+
+        Assert.assertTrue(Files.isSameFile(source, target));
+    }
+}
@@ -0,0 +1,75 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class LibraryVersionsTest {
+
+    private static final String MAVEN_METADATA = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<metadata>\n"
+            + "  <groupId>com.example</groupId>\n"
+            + "  <artifactId>my-library</artifactId>\n"
+            + "  <version>1.0</version>\n"
+            + "  <versioning>\n"
+            + "    <latest>2.0.0-beta</latest>\n"
+            + "    <versions>\n"
+            + "      <version>1.0</version>\n"
+            + "      <version>1.9.2</version>\n"
+            + "      <version>1.10.0</version>\n"
+            + "      <version>1.10.0-beta</version>\n"
+            + "      <version>2.0.0-beta</version>\n"
+            + "    </versions>\n"
+            + "  </versioning>\n"
+            + "</metadata>\n";
+
+    @Test
+    public void comparesVersions() {
+        Assert.assertTrue(LibraryVersions.compare("1.10.0", "1.9.2") > 0);
+        Assert.assertTrue(LibraryVersions.compare("1.9.2", "1.9.2-beta") > 0);
+        Assert.assertTrue(LibraryVersions.compare("1.9.2-beta", "1.9") > 0);
+        Assert.assertTrue(LibraryVersions.compare("1.9.2-rc", "1.9.2-beta") > 0);
+        Assert.assertEquals(0, LibraryVersions.compare("1.02", "1.2"));
+    }
+
+    @Test
+    public void recognizesDynamicVersions() {
+        Assert.assertTrue(LibraryVersions.isDynamic("latest"));
+        Assert.assertTrue(LibraryVersions.isDynamic("1.+"));
+        Assert.assertFalse(LibraryVersions.isDynamic("1.2.3"));
+    }
+
+    @Test
+    public void resolvesAgainstMavenMetadata() throws IOException {
+        LibraryVersions versions = LibraryVersions.parse(MAVEN_METADATA, null, null);
+        Assert.assertEquals(Arrays.asList("1.0", "1.9.2", "1.10.0", "1.10.0-beta", "2.0.0-beta"), versions.getVersions());
+        Assert.assertEquals("1.10.0", versions.resolve("1.+"));
+        Assert.assertEquals("1.9.2", versions.resolve("1.9.+"));
+        Assert.assertEquals("2.0.0-beta", versions.resolve("latest"));
+        Assert.assertNull(versions.resolve("3.+"));
+    }
+
+    @Test
+    public void resolvesAgainstJsonIndex() throws IOException {
+        Assert.assertEquals("1.10.0", LibraryVersions.parse("[\"1.9.2\", \"1.10.0\"]", null, null).resolve("1.+"));
+        Assert.assertEquals("1.10.0",
+                LibraryVersions.parse("{\"versions\": [\"1.9.2\", \"1.10.0\"]}", null, null).resolve("latest"));
+    }
+
+    @Test
+    public void matchesPrefixUpToPartBoundary() throws IOException {
+        LibraryVersions versions = LibraryVersions.parse("[\"1\", \"1.2\", \"1-beta\", \"10.0\", \"1.20\"]", null, null);
+        Assert.assertEquals("1.20", versions.resolve("1+"));
+        Assert.assertEquals("1.2", versions.resolve("1.2+"));
+        Assert.assertEquals("10.0", versions.resolve("10+"));
+        Assert.assertNull(versions.resolve("2+"));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfMetadataIsInvalid() throws IOException {
+        LibraryVersions.parse("<!DOCTYPE metadata [<!ENTITY x SYSTEM \"file:///etc/passwd\">]><metadata>&x;</metadata>",
+                null, null);
+    }
+}
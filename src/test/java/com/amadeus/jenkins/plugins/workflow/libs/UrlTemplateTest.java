@@ -0,0 +1,53 @@
+package com.amadeus.jenkins.plugins.workflow.libs;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UrlTemplateTest {
+
+    @Test
+    public void keepsUrlWithoutPlaceholder() {
+        UrlTemplate template = UrlTemplate.compile("https://repo/lib.zip");
+        Assert.assertEquals("https://repo/lib.zip", template.expand("lib", "1.2.3"));
+    }
+
+    @Test
+    public void replacesVersion() {
+        UrlTemplate template = UrlTemplate.compile("https://repo/${library.lib.version}/lib-${library.lib.version}.zip");
+        Assert.assertEquals("https://repo/1.2.3/lib-1.2.3.zip", template.expand("lib", "1.2.3"));
+    }
+
+    @Test
+    public void replacesNameAndVersionParts() {
+        UrlTemplate template = UrlTemplate.compile("https://repo/${library.my.lib.name}/${library.my.lib.version.major}"
+                + "/${library.my.lib.version.minor}/${library.my.lib.version.patch}/${library.my.lib.version.classifier}.zip");
+        Assert.assertEquals("https://repo/my.lib/1/2/3/beta-1.zip", template.expand("my.lib", "1.2.3-beta-1"));
+        Assert.assertEquals("https://repo/my.lib/master///.zip", template.expand("my.lib", "master"));
+    }
+
+    @Test
+    public void keepsPlaceholdersOfOtherLibraries() {
+        UrlTemplate template = UrlTemplate.compile("https://repo/${library.other.version}/${unknown}/${library.lib.version}");
+        Assert.assertEquals("https://repo/${library.other.version}/${unknown}/2.0", template.expand("lib", "2.0"));
+    }
+
+    @Test
+    public void matchesWholePlaceholderForNamesWithVersionInThem() {
+        UrlTemplate template = UrlTemplate.compile("https://repo/${library.my.version.lib.name}/"
+                + "${library.my.version.lib.version}/${library.my.version.lib.version.major}/"
+                + "${library.my.version}.zip");
+        Assert.assertEquals("https://repo/my.version.lib/1.2/1/${library.my.version}.zip",
+                template.expand("my.version.lib", "1.2"));
+        Assert.assertEquals("https://repo/${library.my.version.lib.name}/${library.my.version.lib.version}/"
+                + "${library.my.version.lib.version.major}/3.0.zip", template.expand("my", "3.0"));
+        Assert.assertEquals("https://repo/${library.my.version.lib.name}/${library.my.version.lib.version}/"
+                + "${library.my.version.lib.version.major}/${library.my.version}.zip",
+                template.expand("my.version", "4.0"));
+    }
+
+    @Test
+    public void keepsUnterminatedPlaceholder() {
+        UrlTemplate template = UrlTemplate.compile("https://repo/${library.lib.version}/${library.lib.version");
+        Assert.assertEquals("https://repo/2.0/${library.lib.version", template.expand("lib", "2.0"));
+    }
+}